@@ -0,0 +1,50 @@
+package com.theusualco.L2tpTether;
+
+import java.nio.ByteBuffer;
+
+// Recycles fixed size direct buffers between the network and whoever
+// consumes the packets.  Once warmed up a balanced acquire/release cycle
+// allocates nothing; allocationCount() shows when that isn't the case.
+public class BufferPool {
+  private final int bufferSize;
+  private final ByteBuffer[] free;
+  private int freeCount;
+  private int allocationCount;
+
+  public BufferPool(int bufferSize, int maxFree) {
+    this.bufferSize = bufferSize;
+    this.free = new ByteBuffer[maxFree];
+  }
+
+  public ByteBuffer acquire() {
+    ByteBuffer buf = null;
+    synchronized (this) {
+      if (freeCount > 0) {
+        buf = free[--freeCount];
+        free[freeCount] = null;
+      } else {
+        allocationCount++;
+      }
+    }
+    if (buf == null) {
+      return ByteBuffer.allocateDirect(bufferSize);
+    }
+    buf.clear();
+    return buf;
+  }
+
+  // Buffers beyond maxFree are left to the garbage collector.
+  public synchronized void release(ByteBuffer buf) {
+    if (freeCount < free.length) {
+      free[freeCount++] = buf;
+    }
+  }
+
+  public int bufferSize() {
+    return bufferSize;
+  }
+
+  public synchronized int allocationCount() {
+    return allocationCount;
+  }
+}
@@ -0,0 +1,73 @@
+package com.theusualco.L2tpTether;
+
+// Table-driven PPP frame check sequences (RFC 1662 appendix C).
+public class HdlcFcs {
+  public static final int FCS_NONE = 0;
+  public static final int FCS_16 = 2;
+  public static final int FCS_32 = 4;
+
+  static final int FCS16_INIT = 0xffff;
+  static final int FCS16_GOOD = 0xf0b8;
+  static final int FCS32_INIT = 0xffffffff;
+  static final int FCS32_GOOD = 0xdebb20e3;
+
+  private static final int[] FCS16_TABLE = new int[256];
+  private static final int[] FCS32_TABLE = new int[256];
+
+  static {
+    for (int b = 0; b < 256; b++) {
+      int v16 = b;
+      int v32 = b;
+      for (int i = 0; i < 8; i++) {
+        v16 = (v16 & 1) != 0 ? (v16 >>> 1) ^ 0x8408 : v16 >>> 1;
+        v32 = (v32 & 1) != 0 ? (v32 >>> 1) ^ 0xedb88320 : v32 >>> 1;
+      }
+      FCS16_TABLE[b] = v16;
+      FCS32_TABLE[b] = v32;
+    }
+  }
+
+  static int init(int type) {
+    return type == FCS_32 ? FCS32_INIT : FCS16_INIT;
+  }
+
+  static boolean good(int type, int fcs) {
+    switch (type) {
+      case FCS_16:
+        return fcs == FCS16_GOOD;
+      case FCS_32:
+        return fcs == FCS32_GOOD;
+      default:
+        return true;
+    }
+  }
+
+  static int update(int type, int fcs, byte c) {
+    switch (type) {
+      case FCS_16:
+        return (fcs >>> 8) ^ FCS16_TABLE[(fcs ^ c) & 0xff];
+      case FCS_32:
+        return (fcs >>> 8) ^ FCS32_TABLE[(fcs ^ c) & 0xff];
+      default:
+        return fcs;
+    }
+  }
+
+  static int update(int type, int fcs, byte[] array, int offset, int length) {
+    int end = offset + length;
+    switch (type) {
+      case FCS_16:
+        for (int i = offset; i < end; i++) {
+          fcs = (fcs >>> 8) ^ FCS16_TABLE[(fcs ^ array[i]) & 0xff];
+        }
+        return fcs;
+      case FCS_32:
+        for (int i = offset; i < end; i++) {
+          fcs = (fcs >>> 8) ^ FCS32_TABLE[(fcs ^ array[i]) & 0xff];
+        }
+        return fcs;
+      default:
+        return fcs;
+    }
+  }
+}
@@ -1,8 +1,7 @@
 package com.theusualco.L2tpTether;
 
-import java.nio.BufferOverflowException;
-import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
 
 import android.util.Log;
 
@@ -12,74 +11,483 @@ public class HdlcFramer {
   public static final byte HDLC_XOR = (byte)0x20;
   public static final byte HDLC_ADDR = (byte)0xFF;
 
-  private ByteBuffer buf = ByteBuffer.allocate(8192);
-  private boolean syncSeen;
+  private static final long LOW_BITS = 0x0101010101010101L;
+  private static final long HIGH_BITS = 0x8080808080808080L;
+  private static final long SYN_WORD = 0x7E7E7E7E7E7E7E7EL;
+  private static final long ESC_WORD = 0x7D7D7D7D7D7D7D7DL;
+
+  // Async-Control-Character-Map applied until LCP negotiates otherwise
+  public static final int DEFAULT_ACCM = 0xffffffff;
+
+  // Received bytes are kept in a ring of fixed size segments which grows
+  // up to maxBuffered.  Buffered bytes are never moved.
+  private static final int SEGMENT_SIZE = 4096;
+  public static final int DEFAULT_MAX_BUFFERED = 65536;
+
+  private static class Segment {
+    final byte[] data = new byte[SEGMENT_SIZE];
+    final ByteBuffer words = ByteBuffer.wrap(data);
+    Segment next;
+  }
+
+  private static final int SPIN_COUNT = 64;
+
+  // Decoder states
+  private static final int STATE_HUNT = 0;  // Waiting for the first sync
+  private static final int STATE_SYNC = 1;  // Between frames
+  private static final int STATE_FRAME = 2;  // Inside a frame
+  private static final int STATE_DISCARD = 3;  // Dropping an oversized frame
+
+  // put() and getFrame() may be called from two different threads without
+  // locking: one producer and one consumer.  The producer publishes bytes
+  // through written, the consumer releases segments through readSegment.
+  private final int maxBuffered;
+  private volatile long written;
+  private volatile Segment readSegment;
+  private volatile Thread producerWaiter;
+  private volatile Thread consumerWaiter;
+  private volatile boolean closed;
+
+  // Producer state
+  private int segmentCount;
+  private Segment tail;
+  private int tailIndex;
+
+  // Consumer state, carried across calls so no byte is scanned twice
+  private Segment head;
+  private int headIndex;
+  private long read;
+  private int state = STATE_HUNT;
+  private boolean escaped;
+  private int fcs;
+  private int frameStart;
+  private int overrunCount;
+  private int badFcsCount;
+
+  private volatile boolean[] sendEscape = escapeTable(DEFAULT_ACCM);
+  // Nothing is discarded until the peer asks for it with SLI
+  private volatile boolean[] receiveSpecial = null;
+  private volatile int fcsType = HdlcFcs.FCS_16;
 
   HdlcFramer() {
-    buf.position(0).limit(0);
+    this(DEFAULT_MAX_BUFFERED);
   }
 
-  public synchronized void put(byte[] src) {
-    Log.d("HdlcFramer", "put()");
-    if (buf.limit() + src.length > buf.capacity() ||
-        buf.position() == buf.limit()) {
-      buf.compact().flip();
-      if (buf.limit() + src.length > buf.capacity()) {
-        throw new BufferOverflowException();
-      }
+  HdlcFramer(int maxBuffered) {
+    this.maxBuffered = Math.max(maxBuffered, 2 * SEGMENT_SIZE);
+    head = tail = new Segment();
+    tail.next = new Segment();
+    tail.next.next = tail;
+    segmentCount = 2;
+    readSegment = head;
+  }
+
+  private static boolean[] escapeTable(int accm) {
+    boolean[] table = new boolean[256];
+    for (int c = 0; c < 32; c++) {
+      table[c] = (accm & (1 << c)) != 0;
     }
-    int pos = buf.position();
-    buf.position(buf.limit()).limit(buf.limit() + src.length);
-    buf.put(src);
-    buf.position(pos);
+    table[HDLC_SYN & 0xff] = true;
+    table[HDLC_ESC & 0xff] = true;
+    return table;
   }
 
-  public synchronized void getFrame(ByteBuffer dest) {
-    Log.d("HdlcFramer", "getFrame");
-    buf.mark();
-    dest.mark();
+  public void sendAccm(int accm) {
+    sendEscape = escapeTable(accm);
+  }
 
-    try {
+  // Control characters flagged in the receive ACCM are discarded if they
+  // arrive unescaped (RFC 1662 7.1).  With an empty map, the default since
+  // the LNS need not send SLI, only sync and escape are special and the
+  // word-at-a-time scan is used.
+  public void receiveAccm(int accm) {
+    receiveSpecial = accm != 0 ? escapeTable(accm) : null;
+  }
+
+  public void fcsType(int type) {
+    fcsType = type;
+  }
+
+  public int badFcsCount() {
+    return badFcsCount;
+  }
+
+  public int overrunCount() {
+    return overrunCount;
+  }
+
+  // Worst case size of an encoded frame: every byte escaped, including the
+  // FCS, plus the flags.
+  public static int maxEncodedLength(int length) {
+    return 2 * (length + HdlcFcs.FCS_32) + 2;
+  }
+
+  // Frames the bytes remaining in src into dest, escaping only the
+  // characters the send ACCM asks for.  Clean spans are copied in bulk and
+  // the FCS is accumulated in the same scan.
+  public void encodeFrame(ByteBuffer src, ByteBuffer dest) {
+    boolean[] escape = sendEscape;
+    int type = fcsType;
+    int fcs = HdlcFcs.init(type);
+    int pos = src.position();
+    int limit = src.limit();
+
+    dest.put(HDLC_SYN);
+    while (pos < limit) {
+      int end = pos;
       byte c;
+      while (end < limit && !escape[(c = src.get(end)) & 0xff]) {
+        fcs = HdlcFcs.update(type, fcs, c);
+        end++;
+      }
+      if (end > pos) {
+        src.limit(end);
+        dest.put(src);
+        src.limit(limit);
+      }
+      if (end < limit) {
+        c = src.get(end);
+        fcs = HdlcFcs.update(type, fcs, c);
+        dest.put(HDLC_ESC);
+        dest.put((byte)(c ^ HDLC_XOR));
+        src.position(++end);
+      }
+      pos = end;
+    }
+
+    // FCS goes out complemented, least significant byte first
+    fcs = ~fcs;
+    for (int i = 0; i < type; i++) {
+      byte c = (byte)fcs;
+      if (escape[c & 0xff]) {
+        dest.put(HDLC_ESC);
+        c ^= HDLC_XOR;
+      }
+      dest.put(c);
+      fcs >>>= 8;
+    }
+    dest.put(HDLC_SYN);
+  }
+
+  // Producer side.  Copies as much of src as fits and returns the number of
+  // bytes taken; call awaitSpace() before offering the rest.
+  public int put(byte[] src, int offset, int length) {
+    int count = 0;
+    while (count < length) {
+      if (tailIndex == SEGMENT_SIZE && !advanceTail()) {
+        break;
+      }
+      int n = Math.min(length - count, SEGMENT_SIZE - tailIndex);
+      System.arraycopy(src, offset + count, tail.data, tailIndex, n);
+      tailIndex += n;
+      count += n;
+    }
+    publish(count);
+    return count;
+  }
+
+  public int put(ByteBuffer src) {
+    int count = 0;
+    while (src.hasRemaining()) {
+      if (tailIndex == SEGMENT_SIZE && !advanceTail()) {
+        break;
+      }
+      int n = Math.min(src.remaining(), SEGMENT_SIZE - tailIndex);
+      src.get(tail.data, tailIndex, n);
+      tailIndex += n;
+      count += n;
+    }
+    publish(count);
+    return count;
+  }
 
-      // Ignore bytes leading up to initial sync
-      if (!syncSeen) {
-        while ((c = buf.get()) != HDLC_SYN)
-          ;
+  private void publish(int count) {
+    if (count > 0) {
+      written += count;
+      Thread waiter = consumerWaiter;
+      if (waiter != null) {
+        LockSupport.unpark(waiter);
       }
+    }
+  }
 
-      // Skip contiguous sync markers between frames
-      while ((c = buf.get()) == HDLC_SYN)
-        ;
+  // Moves the producer on to the next free segment, splicing in a new one
+  // when the ring is full.  The segment after tail is only busy if the
+  // consumer is still in it, and the consumer never moves past tail.
+  // Returns false once the cap has been reached.
+  private boolean advanceTail() {
+    if (tail.next == readSegment) {
+      if ((segmentCount + 1) * SEGMENT_SIZE > maxBuffered) {
+        return false;
+      }
+      Segment segment = new Segment();
+      segment.next = tail.next;
+      tail.next = segment;
+      segmentCount++;
+    }
+    tail = tail.next;
+    tailIndex = 0;
+    return true;
+  }
 
-      boolean escaped = false;
-    loop:
-      while (true) {
-        switch (c) {
-          case HDLC_SYN:
-            break loop;
-          case HDLC_ESC:
+  // Blocks the producer until put() can make progress.  Returns false if
+  // the framer was closed.
+  public boolean awaitSpace() {
+    for (int i = 0; i < SPIN_COUNT && tail.next == readSegment; i++) {
+      Thread.yield();
+    }
+
+    producerWaiter = Thread.currentThread();
+    while (!closed && tailIndex == SEGMENT_SIZE &&
+           tail.next == readSegment &&
+           (segmentCount + 1) * SEGMENT_SIZE > maxBuffered) {
+      LockSupport.park(this);
+      if (Thread.interrupted()) {
+        closed = true;
+      }
+    }
+    producerWaiter = null;
+    return !closed;
+  }
+
+  // Blocks the consumer until there are unread bytes.  Returns false if
+  // the framer was closed and everything has been read.
+  public boolean awaitData() {
+    // The producer usually isn't far behind, so give it a moment before
+    // paying for a park/unpark round trip
+    for (int i = 0; i < SPIN_COUNT && written == read; i++) {
+      Thread.yield();
+    }
+    if (written != read) {
+      return true;
+    }
+
+    consumerWaiter = Thread.currentThread();
+    while (!closed && written == read) {
+      LockSupport.park(this);
+      if (Thread.interrupted()) {
+        closed = true;
+      }
+    }
+    consumerWaiter = null;
+    return written != read;
+  }
+
+  public void close() {
+    closed = true;
+    Thread waiter = producerWaiter;
+    if (waiter != null) {
+      LockSupport.unpark(waiter);
+    }
+    waiter = consumerWaiter;
+    if (waiter != null) {
+      LockSupport.unpark(waiter);
+    }
+  }
+
+  // Consumer side.  De-frames as much buffered input as is available into
+  // dest and returns true once a complete frame with a good FCS sits
+  // between the position dest had when the frame started and its current
+  // position.  Returns false when the input runs out mid-frame; the partial
+  // frame stays in dest and the same buffer must be passed again.
+  public boolean getFrame(ByteBuffer dest) {
+    long available = written - read;
+    long start = available;
+    Segment segment = head;
+    int pos = headIndex;
+    int type = fcsType;
+    boolean[] special = receiveSpecial;
+    boolean done = false;
+
+    while (!done) {
+      if (pos == SEGMENT_SIZE) {
+        if (available == 0) {
+          break;
+        }
+        // Release the finished segment to the producer
+        segment = segment.next;
+        pos = 0;
+        readSegment = segment;
+        Thread waiter = producerWaiter;
+        if (waiter != null) {
+          LockSupport.unpark(waiter);
+        }
+      }
+      if (available == 0) {
+        break;
+      }
+
+      byte[] array = segment.data;
+      int limit = (int)Math.min(SEGMENT_SIZE, pos + available);
+      int begin = pos;
+
+      switch (state) {
+        case STATE_HUNT:
+        case STATE_DISCARD:
+          // Ignore bytes up to the next sync
+          pos = scanSync(segment, pos, limit);
+          if (pos < limit) {
+            pos++;
+            state = STATE_SYNC;
+          }
+          break;
+
+        case STATE_SYNC:
+          // Skip contiguous sync markers between frames
+          while (pos < limit && array[pos] == HDLC_SYN) {
+            pos++;
+          }
+          if (pos < limit) {
+            state = STATE_FRAME;
+            escaped = false;
+            fcs = HdlcFcs.init(type);
+            frameStart = dest.position();
+          }
+          break;
+
+        case STATE_FRAME:
+          while (pos < limit && !done && state == STATE_FRAME) {
+            byte c;
             if (!escaped) {
-              escaped = true;
-              break;
+              // Copy the clean span up to the next sync or escape in one go
+              int end = special == null ?
+                  scanSpecial(segment, pos, limit) :
+                  scanSpecial(array, pos, limit, special);
+              int n = end - pos;
+              if (n > dest.remaining()) {
+                overrun(dest);
+                break;
+              }
+              fcs = HdlcFcs.update(type, fcs, array, pos, n);
+              if (n > 8) {
+                dest.put(array, pos, n);
+                pos = end;
+              } else {
+                while (pos < end) {
+                  dest.put(array[pos++]);
+                }
+              }
+              if (pos == limit) {
+                break;
+              }
+
+              c = array[pos++];
+              if (c == HDLC_SYN) {
+                done = endFrame(dest, type);
+              } else if (c == HDLC_ESC) {
+                escaped = true;
+              }
+              // Otherwise a flagged control character, dropped
+              continue;
+            }
+
+            // Escape; an escaped sync still terminates the frame
+            c = array[pos++];
+            if (c == HDLC_SYN) {
+              done = endFrame(dest, type);
+              continue;
             }
-            // fall through
-          default:
-            if (escaped) {
-              c ^= HDLC_XOR;
-              escaped = false;
+            if (special != null && c != HDLC_ESC && special[c & 0xff]) {
+              continue;
             }
+            if (!dest.hasRemaining()) {
+              overrun(dest);
+              break;
+            }
+            escaped = false;
+            c ^= HDLC_XOR;
+            fcs = HdlcFcs.update(type, fcs, c);
             dest.put(c);
-            break;
-        }
-        c = buf.get();
+          }
+          break;
       }
-    } catch (BufferUnderflowException e) {
-      buf.reset();
-      dest.reset();
-      throw e;  // rethrow
+
+      available -= pos - begin;
+    }
+
+    head = segment;
+    headIndex = pos;
+    read += start - available;
+    return done;
+  }
+
+  private boolean endFrame(ByteBuffer dest, int type) {
+    state = STATE_SYNC;
+
+    // The FCS covers itself, so a good frame leaves a fixed residue
+    if (dest.position() - frameStart >= type && HdlcFcs.good(type, fcs)) {
+      dest.position(dest.position() - type);
+      return true;
+    }
+
+    Log.d("HdlcFramer", "bad FCS, dropping frame");
+    badFcsCount++;
+    dest.position(frameStart);
+    return false;
+  }
+
+  private void overrun(ByteBuffer dest) {
+    Log.d("HdlcFramer", "frame too long, dropping");
+    overrunCount++;
+    dest.position(frameStart);
+    state = STATE_DISCARD;
+  }
+
+  // Returns the index of the first sync in [pos, limit), or limit.
+  private static int scanSync(Segment segment, int pos, int limit) {
+    byte[] array = segment.data;
+    while (limit - pos >= 8) {
+      long x = segment.words.getLong(pos) ^ SYN_WORD;
+      if (((x - LOW_BITS) & ~x & HIGH_BITS) != 0) {
+        break;
+      }
+      pos += 8;
     }
+    while (pos < limit && array[pos] != HDLC_SYN) {
+      pos++;
+    }
+    return pos;
+  }
 
-    syncSeen = true;
+  // Returns the index of the first sync or escape in [pos, limit), or limit.
+  // The first few bytes are checked one at a time so that densely escaped
+  // data doesn't pay for the word loads; longer clean spans are scanned a
+  // long at a time using the usual has-zero-byte trick.
+  private static int scanSpecial(Segment segment, int pos, int limit) {
+    byte[] array = segment.data;
+    int end = Math.min(pos + 8, limit);
+    for (; pos < end; pos++) {
+      byte c = array[pos];
+      if (c == HDLC_SYN || c == HDLC_ESC) {
+        return pos;
+      }
+    }
+
+    while (limit - pos >= 8) {
+      long word = segment.words.getLong(pos);
+      long x = word ^ SYN_WORD;
+      long y = word ^ ESC_WORD;
+      if ((((x - LOW_BITS) & ~x | (y - LOW_BITS) & ~y) & HIGH_BITS) != 0) {
+        break;
+      }
+      pos += 8;
+    }
+
+    for (; pos < limit; pos++) {
+      byte c = array[pos];
+      if (c == HDLC_SYN || c == HDLC_ESC) {
+        break;
+      }
+    }
+    return pos;
+  }
+
+  // As above, but stops at any byte flagged in the given table.
+  private static int scanSpecial(byte[] array, int pos, int limit,
+                                 boolean[] special) {
+    while (pos < limit && !special[array[pos] & 0xff]) {
+      pos++;
+    }
+    return pos;
   }
 }
@@ -0,0 +1,94 @@
+package com.theusualco.L2tpTether;
+
+import java.nio.ByteBuffer;
+
+// MD5 stream used to hide and unhide AVP values (RFC 2661 4.3):
+//
+//   b1 = MD5(type + secret + random vector)   c1 = p1 ^ b1
+//   bi = MD5(secret + c(i-1))                 ci = pi ^ bi
+//
+// One engine is kept per thread.  It holds on to its digests and
+// remembers one that has already absorbed the shared secret, so every
+// 16 byte block after the first restores that state instead of rehashing
+// the secret, and nothing is allocated.  Values are transformed in place.
+public class HiddenAvpEngine {
+  private static final int BLOCK_SIZE = Md5.DIGEST_LENGTH;
+
+  private static final ThreadLocal<HiddenAvpEngine> sEngine =
+      new ThreadLocal<HiddenAvpEngine>() {
+        @Override
+        protected HiddenAvpEngine initialValue() {
+          return new HiddenAvpEngine();
+        }
+      };
+
+  private final Md5 md = new Md5();
+  private final Md5 secretState = new Md5();
+  private final byte[] digest = new byte[BLOCK_SIZE];
+  private final byte[] typeBytes = new byte[2];
+  private byte[] secret;
+
+  private HiddenAvpEngine() {
+  }
+
+  static HiddenAvpEngine get() {
+    return sEngine.get();
+  }
+
+  // Replaces the length bytes at buf[start..start+length) with their
+  // hidden form.
+  void hide(ByteBuffer buf, int start, int length,
+            int type, byte[] secret, byte[] random) {
+    crypt(buf, start, length, type, secret, random, true);
+  }
+
+  // Replaces the length hidden bytes at buf[start..start+length) with the
+  // original subformat: a two byte length, the value and any padding.
+  void unhide(ByteBuffer buf, int start, int length,
+              int type, byte[] secret, byte[] random) {
+    crypt(buf, start, length, type, secret, random, false);
+  }
+
+  private void crypt(ByteBuffer buf, int start, int length,
+                     int type, byte[] secret, byte[] random, boolean hide) {
+    if (secret != this.secret) {
+      this.secret = secret;
+      secretState.reset();
+      secretState.update(secret);
+    }
+
+    typeBytes[0] = (byte)(type >> 8);
+    typeBytes[1] = (byte)type;
+    md.reset();
+    md.update(typeBytes);
+    md.update(secret);
+    md.update(random);
+    md.digest(digest, 0);
+
+    int end = start + length;
+    for (int block = start; block < end; block += BLOCK_SIZE) {
+      int blockEnd = Math.min(block + BLOCK_SIZE, end);
+      boolean last = blockEnd == end;
+
+      // The next block is keyed off this block's hidden bytes, so when
+      // unhiding they are fed in before being overwritten
+      if (!last) {
+        md.copyFrom(secretState);
+        if (!hide) {
+          md.update(buf, block, blockEnd);
+        }
+      }
+
+      for (int i = block; i < blockEnd; i++) {
+        buf.put(i, (byte)(buf.get(i) ^ digest[i - block]));
+      }
+
+      if (!last) {
+        if (hide) {
+          md.update(buf, block, blockEnd);
+        }
+        md.digest(digest, 0);
+      }
+    }
+  }
+}
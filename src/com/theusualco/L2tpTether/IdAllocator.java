@@ -0,0 +1,54 @@
+package com.theusualco.L2tpTether;
+
+// Hands out 16 bit tunnel or session ids, never 0.  A bitmap marks the ids
+// in use and the search carries on from the last id handed out, so a
+// freed id is only reused once the rest of the space has gone round.  That
+// keeps a late packet for a closed tunnel or session from landing on the
+// one that replaced it.
+public class IdAllocator {
+  private static final int IDS = 65536;
+
+  private final long[] used = new long[IDS / 64];
+  private int cursor = 1;
+  private int count;
+
+  // Returns -1 when every id is taken
+  public synchronized int allocate() {
+    if (count == IDS - 1) {
+      return -1;
+    }
+    int id = cursor;
+    while (true) {
+      if (id == 0) {
+        id = 1;
+      }
+      long word = used[id >>> 6];
+      if (word == -1L) {
+        // Whole word taken, skip to the next
+        id = ((id >>> 6) + 1) << 6 & (IDS - 1);
+        continue;
+      }
+      if ((word & (1L << id)) == 0) {
+        break;
+      }
+      id = (id + 1) & (IDS - 1);
+    }
+    used[id >>> 6] |= 1L << id;
+    count++;
+    cursor = (id + 1) & (IDS - 1);
+    return id;
+  }
+
+  public synchronized void free(int id) {
+    id &= 0xffff;
+    long bit = 1L << id;
+    if (id != 0 && (used[id >>> 6] & bit) != 0) {
+      used[id >>> 6] &= ~bit;
+      count--;
+    }
+  }
+
+  public synchronized int size() {
+    return count;
+  }
+}
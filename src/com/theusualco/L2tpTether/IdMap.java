@@ -0,0 +1,143 @@
+package com.theusualco.L2tpTether;
+
+// Map from 16 bit tunnel or session ids to objects.  Open addressing with
+// linear probing over a primitive key array, so a lookup neither boxes the
+// id nor allocates.  Id 0 is reserved by the protocol and marks an empty
+// slot.  Removal shifts the following entries back instead of leaving
+// tombstones, so probe sequences stay short however much churn there is.
+//
+// Not thread safe; the client's maps are only touched on its event loop
+// thread.
+public class IdMap<V> {
+  private char[] keys;  // Unsigned 16 bit ids
+  private Object[] values;
+  private int mask;
+  private int size;
+
+  public IdMap() {
+    this(16);
+  }
+
+  // capacity is rounded up to a power of two
+  public IdMap(int capacity) {
+    int n = Integer.highestOneBit(Math.max(4, capacity - 1)) << 1;
+    keys = new char[n];
+    values = new Object[n];
+    mask = n - 1;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  private int slot(int id) {
+    int h = id * 0x9e3779b1;
+    return (h ^ (h >>> 16)) & mask;
+  }
+
+  @SuppressWarnings("unchecked")
+  public V get(int id) {
+    id &= 0xffff;
+    if (id == 0) {
+      return null;
+    }
+    for (int i = slot(id); ; i = (i + 1) & mask) {
+      int key = keys[i];
+      if (key == id) {
+        return (V)values[i];
+      }
+      if (key == 0) {
+        return null;
+      }
+    }
+  }
+
+  // Returns the previous value for id, if any
+  @SuppressWarnings("unchecked")
+  public V put(int id, V value) {
+    id &= 0xffff;
+    if (id == 0) {
+      throw new IllegalArgumentException("id 0 is reserved");
+    }
+    for (int i = slot(id); ; i = (i + 1) & mask) {
+      int key = keys[i];
+      if (key == id) {
+        V old = (V)values[i];
+        values[i] = value;
+        return old;
+      }
+      if (key == 0) {
+        keys[i] = (char)id;
+        values[i] = value;
+        // Keep the load at or under one half
+        if (++size * 2 > keys.length) {
+          resize(keys.length * 2);
+        }
+        return null;
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  public V remove(int id) {
+    id &= 0xffff;
+    if (id == 0) {
+      return null;
+    }
+    int i = slot(id);
+    while (keys[i] != id) {
+      if (keys[i] == 0) {
+        return null;
+      }
+      i = (i + 1) & mask;
+    }
+    V old = (V)values[i];
+
+    // Move back any entry further along the run that probed past i
+    int hole = i;
+    for (int j = (i + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+      int home = slot(keys[j]);
+      if (((j - home) & mask) >= ((j - hole) & mask)) {
+        keys[hole] = keys[j];
+        values[hole] = values[j];
+        hole = j;
+      }
+    }
+    keys[hole] = 0;
+    values[hole] = null;
+    size--;
+    return old;
+  }
+
+  // Snapshot of the values, so callers can walk them while putting or
+  // removing entries
+  public Object[] values() {
+    Object[] result = new Object[size];
+    int n = 0;
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != 0) {
+        result[n++] = values[i];
+      }
+    }
+    return result;
+  }
+
+  private void resize(int capacity) {
+    char[] oldKeys = keys;
+    Object[] oldValues = values;
+    keys = new char[capacity];
+    values = new Object[capacity];
+    mask = capacity - 1;
+    for (int i = 0; i < oldKeys.length; i++) {
+      int id = oldKeys[i];
+      if (id != 0) {
+        int j = slot(id);
+        while (keys[j] != 0) {
+          j = (j + 1) & mask;
+        }
+        keys[j] = (char)id;
+        values[j] = oldValues[i];
+      }
+    }
+  }
+}
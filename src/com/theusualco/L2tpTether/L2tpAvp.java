@@ -1,8 +1,6 @@
 package com.theusualco.L2tpTether;
 
 import java.nio.ByteBuffer;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import org.apache.http.util.EncodingUtils;
 
 public class L2tpAvp
@@ -71,6 +69,7 @@ public class L2tpAvp
 
   // Member vars
   public boolean isMandatory;
+  public int vendorId;
   public int type;
   public ByteBuffer value;
 
@@ -78,6 +77,11 @@ public class L2tpAvp
     init(mandatory, type, value);
   }
 
+  public L2tpAvp(boolean mandatory, int vendorId, int type, ByteBuffer value) {
+    init(mandatory, type, value);
+    this.vendorId = vendorId;
+  }
+
   public L2tpAvp(boolean mandatory, int type, byte[] value) {
     init(mandatory, type, ByteBuffer.wrap(value));
   }
@@ -104,7 +108,8 @@ public class L2tpAvp
     this.value = value;
   }
 
-  static L2tpAvp parse(ByteBuffer src, byte[] secret, byte[] random) {
+  static L2tpAvp parse(ByteBuffer src, byte[] secret, byte[] random)
+      throws AvpFormatInvalidException {
     int field = src.getShort();
     boolean mandatory = (field & L2TP_AVP_HEADER_MANDATORY_MASK) != 0;
     boolean hidden = (field & L2TP_AVP_HEADER_HIDDEN_MASK) != 0;
@@ -114,7 +119,8 @@ public class L2tpAvp
     length -= L2TP_AVP_HEADER_MINIMUM_LENGTH;
     assert src.remaining() >= length;
 
-    int type = src.getInt();
+    int vendorId = src.getShort() & 0xffff;
+    int type = src.getShort() & 0xffff;
 
     int position = src.position();
     int remaining = src.remaining();
@@ -124,78 +130,52 @@ public class L2tpAvp
     src.position(position+length);
 
     if (hidden) {
-      unhide(value, value.slice(), type, secret, random);
-      length = value.getShort();
-      value.limit(length);
+      if (secret == null || random == null || length < 2) {
+        throw new AvpFormatInvalidException();
+      }
+      HiddenAvpEngine.get().unhide(value, 0, length, type, secret, random);
+      int hiddenLength = value.getShort(0) & 0xffff;
+      if (hiddenLength > length - 2) {
+        throw new AvpFormatInvalidException();
+      }
+      value.limit(2 + hiddenLength).position(2);
       value = value.slice();
     }
 
-    return new L2tpAvp(mandatory, type, value);
-  }
-
-  private static void unhide(ByteBuffer src, ByteBuffer dest,
-                             int type, byte[] secret, byte[] random) {
-    assert dest.remaining() >= src.remaining();
-
-    byte[] typeArray = {
-      (byte)((type & 0xf0) >> 8),
-      (byte)((type & 0x0f))
-    };
-
-    MessageDigest md = null;
-    try {
-      md = MessageDigest.getInstance("md5");
-    } catch (NoSuchAlgorithmException e) {
-      throw new RuntimeException(e.toString());
-    }
-    md.update(typeArray);
-    md.update(secret);
-    md.update(random);
-    byte[] digest = md.digest();
-
-    int startPos = src.position();
-    int pos = 0;
-    while (src.remaining() > 0) {
-      if (pos > 0 && pos % digest.length == 0) {
-        byte[] last = new byte[digest.length];
-        src.position(startPos + pos - digest.length);
-        src.get(last);
-
-        md.reset();
-        md.update(secret);
-        md.update(last);
-        digest = md.digest();
-      }
-
-      dest.put((byte)(src.get() ^ digest[pos++ % digest.length]));
-    }
+    return new L2tpAvp(mandatory, vendorId, type, value);
   }
 
   void serialize(ByteBuffer dest) {
+    writeHeader(isMandatory, false, vendorId, type, value.limit(), dest);
     int pos = value.position();
     value.position(0);
-    doSerialize(isMandatory, false, type, value, dest);
+    dest.put(value);
     value.position(pos);
   }
 
+  // Writes the value hidden, as its original length followed by the value,
+  // obscured in place in dest.
   void serializeHidden(byte[] secret, byte[] random, ByteBuffer dest) {
-    ByteBuffer hiddenValue = ByteBuffer.allocate(2 + value.limit());
-    hiddenValue.putShort((short)value.limit());
-    unhide(value, hiddenValue, type, secret, random);
-    hiddenValue.position(0);
-    doSerialize(isMandatory, true, type, hiddenValue, dest);
+    writeHeader(isMandatory, true, vendorId, type, 2 + value.limit(), dest);
+    int start = dest.position();
+    dest.putShort((short)value.limit());
+    int pos = value.position();
+    value.position(0);
+    dest.put(value);
+    value.position(pos);
+    HiddenAvpEngine.get().hide(dest, start, dest.position() - start, type, secret, random);
   }
 
-  private void doSerialize(boolean mandatory, boolean hidden, int type, ByteBuffer value,
-                           ByteBuffer dest) {
+  private static void writeHeader(boolean mandatory, boolean hidden, int vendorId, int type,
+                                  int valueLength, ByteBuffer dest) {
     short flags = L2TP_AVP_HEADER_MINIMUM_LENGTH;
-    flags += value.limit();
+    flags += valueLength;
     flags &= L2TP_AVP_HEADER_LENGTH_MASK;
     if (mandatory) { flags |= L2TP_AVP_HEADER_MANDATORY_MASK; }
     if (hidden) { flags |= L2TP_AVP_HEADER_HIDDEN_MASK; }
 
     dest.putShort(flags);
-    dest.putInt(type);
-    dest.put(value);
+    dest.putShort((short)vendorId);
+    dest.putShort((short)type);
   }
 }
@@ -0,0 +1,94 @@
+package com.theusualco.L2tpTether;
+
+import java.util.Arrays;
+
+// The AVPs of one received control message, checked and decoded by an
+// L2tpAvpRegistry.  Numeric values are kept as primitives; anything else
+// is left in the packet and can be fetched through avp().  One instance is
+// reused for every message, so clearing only touches the slots last set.
+public class L2tpAvpFields
+{
+  private final L2tpAvpRegistry mRegistry;
+  private final long[] mValues;
+  private final int[] mIndexes;
+  private final int[] mSet;
+  private int mSetCount;
+  private L2tpControlPacket mPacket;
+
+  public L2tpAvpFields(L2tpAvpRegistry registry) {
+    mRegistry = registry;
+    mValues = new long[registry.size()];
+    mIndexes = new int[registry.size()];
+    mSet = new int[registry.size()];
+    Arrays.fill(mIndexes, -1);
+  }
+
+  void reset(L2tpControlPacket packet) {
+    for (int i = 0; i < mSetCount; i++) {
+      mIndexes[mSet[i]] = -1;
+      mValues[mSet[i]] = 0;
+    }
+    mSetCount = 0;
+    mPacket = packet;
+  }
+
+  // The first occurrence of an AVP wins
+  void set(int slot, int index, long value) {
+    if (mIndexes[slot] >= 0) {
+      return;
+    }
+    mIndexes[slot] = index;
+    mValues[slot] = value;
+    mSet[mSetCount++] = slot;
+  }
+
+  boolean has(int type) {
+    return index(type) >= 0;
+  }
+
+  boolean has(int vendorId, int type) {
+    return index(vendorId, type) >= 0;
+  }
+
+  // Index of the AVP within the packet, or -1 if it wasn't present
+  int index(int type) {
+    return index(L2tpAvp.L2TP_AVP_IETF_VENDOR_ID, type);
+  }
+
+  int index(int vendorId, int type) {
+    int slot = mRegistry.slot(vendorId, type);
+    return slot >= 0 ? mIndexes[slot] : -1;
+  }
+
+  // Decoded values, 0 if the AVP wasn't present
+  int u16(int type) {
+    return (int)value(L2tpAvp.L2TP_AVP_IETF_VENDOR_ID, type);
+  }
+
+  long u32(int type) {
+    return value(L2tpAvp.L2TP_AVP_IETF_VENDOR_ID, type);
+  }
+
+  long u64(int type) {
+    return value(L2tpAvp.L2TP_AVP_IETF_VENDOR_ID, type);
+  }
+
+  long value(int vendorId, int type) {
+    int slot = mRegistry.slot(vendorId, type);
+    return slot >= 0 ? mValues[slot] : 0;
+  }
+
+  // The full AVP, for values the registry doesn't decode.  Hidden values
+  // only have their length checked here, once they are unhidden.
+  L2tpAvp avp(int type) throws AvpFormatInvalidException {
+    int slot = mRegistry.slot(L2tpAvp.L2TP_AVP_IETF_VENDOR_ID, type);
+    if (slot < 0 || mIndexes[slot] < 0) {
+      return null;
+    }
+    L2tpAvp avp = mPacket.avp(mIndexes[slot]);
+    if (!mRegistry.validLength(slot, avp.value.limit())) {
+      throw new AvpFormatInvalidException();
+    }
+    return avp;
+  }
+}
@@ -0,0 +1,229 @@
+package com.theusualco.L2tpTether;
+
+import android.util.Log;
+
+// Knows how to validate and decode each AVP a control message may carry.
+// Entries live in flat arrays indexed by vendor slot and attribute type,
+// so looking one up for each received AVP is a couple of array loads.
+public class L2tpAvpRegistry
+{
+  // Value decoders
+  static final int DECODE_NONE = 0;  // Length checked, value left in the packet
+  static final int DECODE_U16 = 1;
+  static final int DECODE_U32 = 2;
+  static final int DECODE_U64 = 3;
+
+  // What to do with a known AVP whose value is malformed
+  static final int POLICY_ENFORCE = 0;  // Reject the message if the M bit is set
+  static final int POLICY_IGNORE = 1;  // Always drop the AVP and carry on
+
+  // Error codes (RFC 2661 section 4.4.2), returned by decode()
+  static final int ERROR_NONE = 0;
+  static final int ERROR_BAD_LENGTH = 2;
+  static final int ERROR_BAD_VALUE = 3;  // Raised by the message handlers
+  static final int ERROR_UNKNOWN_MANDATORY = 8;
+
+  // Attribute types per vendor; anything above is treated as unknown
+  static final int MAX_TYPES = 64;
+
+  static final int MAX_VALUE_LENGTH =
+      L2tpAvp.L2TP_AVP_HEADER_LENGTH_MASK - L2tpAvp.L2TP_AVP_HEADER_MINIMUM_LENGTH;
+
+  private int[] mVendorIds = new int[] { L2tpAvp.L2TP_AVP_IETF_VENDOR_ID };
+  private boolean[] mKnown = new boolean[MAX_TYPES];
+  private byte[] mDecoders = new byte[MAX_TYPES];
+  private byte[] mPolicies = new byte[MAX_TYPES];
+  private short[] mMinLengths = new short[MAX_TYPES];
+  private short[] mMaxLengths = new short[MAX_TYPES];
+
+  public L2tpAvpRegistry() {
+    registerIetf();
+  }
+
+  // The AVPs defined by RFC 2661, with their value lengths
+  private void registerIetf() {
+    register(L2tpAvp.L2TP_AVP_MESSAGE_TYPE, DECODE_U16, 2, 2);
+    register(L2tpAvp.L2TP_AVP_RESULT_CODE, DECODE_NONE, 2, MAX_VALUE_LENGTH);
+    register(L2tpAvp.L2TP_AVP_PROTOCOL_VERSION, DECODE_U16, 2, 2);
+    register(L2tpAvp.L2TP_AVP_FRAMING_CAPABILITIES, DECODE_U32, 4, 4);
+    register(L2tpAvp.L2TP_AVP_BEARER_CAPABILITIES, DECODE_U32, 4, 4);
+    register(L2tpAvp.L2TP_AVP_TIE_BREAKER, DECODE_U64, 8, 8);
+    register(L2tpAvp.L2TP_AVP_FIRMWARE_REVISION, DECODE_U16, 2, 2);
+    register(L2tpAvp.L2TP_AVP_HOST_NAME, DECODE_NONE, 1, MAX_VALUE_LENGTH);
+    register(L2tpAvp.L2TP_AVP_VENDOR_NAME, DECODE_NONE, 0, MAX_VALUE_LENGTH);
+    register(L2tpAvp.L2TP_AVP_ASSIGNED_TUNNEL_ID, DECODE_U16, 2, 2);
+    register(L2tpAvp.L2TP_AVP_RECEIVE_WINDOW_SIZE, DECODE_U16, 2, 2, POLICY_IGNORE);
+    register(L2tpAvp.L2TP_AVP_CHALLENGE, DECODE_NONE, 1, MAX_VALUE_LENGTH);
+    register(L2tpAvp.L2TP_AVP_CAUSE_CODE, DECODE_NONE, 3, MAX_VALUE_LENGTH);
+    register(L2tpAvp.L2TP_AVP_CHALLENGE_RESPONSE, DECODE_NONE, 16, 16);
+    register(L2tpAvp.L2TP_AVP_ASSIGNED_SESSION_ID, DECODE_U16, 2, 2);
+    register(L2tpAvp.L2TP_AVP_CALL_SERIAL_NUMBER, DECODE_U32, 4, 4);
+    register(L2tpAvp.L2TP_AVP_MINIMUM_BPS, DECODE_U32, 4, 4);
+    register(L2tpAvp.L2TP_AVP_MAXIMUM_BPS, DECODE_U32, 4, 4);
+    register(L2tpAvp.L2TP_AVP_BEARER_TYPE, DECODE_U32, 4, 4);
+    register(L2tpAvp.L2TP_AVP_FRAMING_TYPE, DECODE_U32, 4, 4);
+    register(L2tpAvp.L2TP_AVP_CALLED_NUMBER, DECODE_NONE, 0, MAX_VALUE_LENGTH);
+    register(L2tpAvp.L2TP_AVP_CALLING_NUMBER, DECODE_NONE, 0, MAX_VALUE_LENGTH);
+    register(L2tpAvp.L2TP_AVP_SUB_ADDRESS, DECODE_NONE, 0, MAX_VALUE_LENGTH);
+    register(L2tpAvp.L2TP_AVP_CONNECT_SPEED, DECODE_U32, 4, 4);
+    register(L2tpAvp.L2TP_AVP_PHYSICAL_CHANNEL_ID, DECODE_U32, 4, 4);
+    register(L2tpAvp.L2TP_AVP_INITIAL_LCP_CONFREQ, DECODE_NONE, 0, MAX_VALUE_LENGTH);
+    register(L2tpAvp.L2TP_AVP_LAST_SENT_LCP_CONFREQ, DECODE_NONE, 0, MAX_VALUE_LENGTH);
+    register(L2tpAvp.L2TP_AVP_LAST_RECV_LCP_CONFREQ, DECODE_NONE, 0, MAX_VALUE_LENGTH);
+    register(L2tpAvp.L2TP_AVP_PROXY_AUTHEN_TYPE, DECODE_U16, 2, 2);
+    register(L2tpAvp.L2TP_AVP_PROXY_AUTHEN_NAME, DECODE_NONE, 0, MAX_VALUE_LENGTH);
+    register(L2tpAvp.L2TP_AVP_PROXY_AUTHEN_CHALLENGE, DECODE_NONE, 1, MAX_VALUE_LENGTH);
+    register(L2tpAvp.L2TP_AVP_PROXY_AUTHEN_ID, DECODE_U16, 2, 2);
+    register(L2tpAvp.L2TP_AVP_PROXY_AUTHEN_RESPONSE, DECODE_NONE, 0, MAX_VALUE_LENGTH);
+    register(L2tpAvp.L2TP_AVP_CALL_ERRORS, DECODE_NONE, 26, 26);
+    // Reserved(2), Send ACCM(4), Receive ACCM(4)
+    register(L2tpAvp.L2TP_AVP_ACCM, DECODE_NONE, 10, 10);
+    register(L2tpAvp.L2TP_AVP_RANDOM_VECTOR, DECODE_NONE, 1, MAX_VALUE_LENGTH);
+    register(L2tpAvp.L2TP_AVP_PRIVATE_GROUP_ID, DECODE_NONE, 0, MAX_VALUE_LENGTH);
+    register(L2tpAvp.L2TP_AVP_RX_CONNECT_SPEED, DECODE_U32, 4, 4);
+    register(L2tpAvp.L2TP_AVP_SEQUENCING_REQUIRED, DECODE_NONE, 0, 0);
+  }
+
+  void register(int type, int decoder, int minLength, int maxLength) {
+    register(L2tpAvp.L2TP_AVP_IETF_VENDOR_ID, type, decoder, minLength, maxLength, POLICY_ENFORCE);
+  }
+
+  void register(int type, int decoder, int minLength, int maxLength, int policy) {
+    register(L2tpAvp.L2TP_AVP_IETF_VENDOR_ID, type, decoder, minLength, maxLength, policy);
+  }
+
+  // Adds or replaces the entry for a vendor AVP.  Each new vendor grows
+  // the tables by MAX_TYPES entries, so register vendors before making
+  // any L2tpAvpFields.
+  void register(int vendorId, int type, int decoder, int minLength, int maxLength,
+                int policy) {
+    if (type < 0 || type >= MAX_TYPES) {
+      throw new IllegalArgumentException("avp type out of range: " + type);
+    }
+
+    int vendor = vendorSlot(vendorId);
+    if (vendor < 0) {
+      vendor = mVendorIds.length;
+      int[] vendorIds = new int[vendor + 1];
+      System.arraycopy(mVendorIds, 0, vendorIds, 0, vendor);
+      vendorIds[vendor] = vendorId;
+      mVendorIds = vendorIds;
+
+      int size = (vendor + 1) * MAX_TYPES;
+      boolean[] known = new boolean[size];
+      byte[] decoders = new byte[size];
+      byte[] policies = new byte[size];
+      short[] minLengths = new short[size];
+      short[] maxLengths = new short[size];
+      System.arraycopy(mKnown, 0, known, 0, mKnown.length);
+      System.arraycopy(mDecoders, 0, decoders, 0, mDecoders.length);
+      System.arraycopy(mPolicies, 0, policies, 0, mPolicies.length);
+      System.arraycopy(mMinLengths, 0, minLengths, 0, mMinLengths.length);
+      System.arraycopy(mMaxLengths, 0, maxLengths, 0, mMaxLengths.length);
+      mKnown = known;
+      mDecoders = decoders;
+      mPolicies = policies;
+      mMinLengths = minLengths;
+      mMaxLengths = maxLengths;
+    }
+
+    int slot = vendor * MAX_TYPES + type;
+    mKnown[slot] = true;
+    mDecoders[slot] = (byte)decoder;
+    mPolicies[slot] = (byte)policy;
+    mMinLengths[slot] = (short)minLength;
+    mMaxLengths[slot] = (short)maxLength;
+  }
+
+  private int vendorSlot(int vendorId) {
+    // IETF AVPs are nearly all there is, check for them first
+    if (vendorId == L2tpAvp.L2TP_AVP_IETF_VENDOR_ID) {
+      return 0;
+    }
+    for (int i = 1; i < mVendorIds.length; i++) {
+      if (mVendorIds[i] == vendorId) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  // Index into the tables for a vendor AVP, or -1 if it isn't registered
+  int slot(int vendorId, int type) {
+    if (type >= MAX_TYPES) {
+      return -1;
+    }
+    int vendor = vendorSlot(vendorId);
+    if (vendor < 0) {
+      return -1;
+    }
+    int slot = vendor * MAX_TYPES + type;
+    return mKnown[slot] ? slot : -1;
+  }
+
+  boolean validLength(int slot, int length) {
+    return length >= mMinLengths[slot] && length <= mMaxLengths[slot];
+  }
+
+  int size() {
+    return mKnown.length;
+  }
+
+  // Checks every AVP in packet against its entry and stores the decoded
+  // values in fields.  Returns ERROR_NONE, or the error code to send back
+  // when the message has to be rejected.
+  int decode(L2tpControlPacket packet, L2tpAvpFields fields) throws AvpFormatInvalidException {
+    fields.reset(packet);
+
+    int count = packet.avpCount();
+    for (int i = 0; i < count; i++) {
+      int vendorId = packet.avpVendor(i);
+      int type = packet.avpType(i);
+      int slot = slot(vendorId, type);
+      if (slot < 0) {
+        Log.d("L2tpAvpRegistry", "unknown avp vendor=" + vendorId + " type=" + type);
+        if (packet.avpMandatory(i)) {
+          return ERROR_UNKNOWN_MANDATORY;
+        }
+        continue;
+      }
+
+      // Hidden values are only unhidden when there is something to decode
+      int decoder = mDecoders[slot];
+      int length;
+      L2tpAvp avp = null;
+      if (decoder != DECODE_NONE || !packet.avpHidden(i)) {
+        if (packet.avpHidden(i)) {
+          avp = packet.avp(i);
+          length = avp.value.limit();
+        } else {
+          length = packet.avpValueLength(i);
+        }
+
+        if (!validLength(slot, length)) {
+          Log.d("L2tpAvpRegistry", "bad length " + length + " for avp type=" + type);
+          if (packet.avpMandatory(i) && mPolicies[slot] == POLICY_ENFORCE) {
+            return ERROR_BAD_LENGTH;
+          }
+          continue;
+        }
+      }
+
+      long value = 0;
+      switch (decoder) {
+        case DECODE_U16:
+          value = avp != null ? avp.value.getShort(0) & 0xffff : packet.avpShort(i) & 0xffff;
+          break;
+        case DECODE_U32:
+          value = avp != null ? avp.value.getInt(0) & 0xffffffffL : packet.avpInt(i) & 0xffffffffL;
+          break;
+        case DECODE_U64:
+          value = avp != null ? avp.value.getLong(0) : packet.avpLong(i);
+          break;
+      }
+      fields.set(slot, i, value);
+    }
+
+    return ERROR_NONE;
+  }
+}
@@ -1,34 +1,53 @@
 package com.theusualco.L2tpTether;
 
 import java.io.IOException;
-import java.lang.InterruptedException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.util.ArrayList;
-import java.util.List;
-import java.util.ListIterator;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
 
-public class L2tpClient implements Runnable
+// Runs any number of tunnels, each to its own LNS and each carrying any
+// number of sessions.  Tunnels are kept in a table keyed by the local
+// tunnel id, and every tunnel keeps its sessions the same way, so an
+// incoming packet finds its tunnel and session straight from the ids in
+// its header.  The buffer pool, timer wheel and AVP registry are shared by
+// everything the client runs.
+//
+// One event loop thread does all the work.  It selects over every
+// tunnel's socket, runs the timers and owns the tunnel and session state,
+// so none of that needs locking.  Other threads hand it work through
+// post(); the public methods of L2tpTunnel and L2tpSession do this for
+// them, and the blocking ones must not be called on the loop thread
+// itself.
+public class L2tpClient
 {
-  // Message types
+  // Message types.  TUNNEL_* carry the L2tpTunnel and SESSION_UP, _DOWN
+  // and _ACCM the L2tpSession in obj.  SESSION_DATA carries the payload
+  // in obj with the local tunnel and session ids in arg1 and arg2, and
+  // SESSION_DATA_BATCH an L2tpDataBatch with the same ids.
   public static final int TUNNEL_UP = 1;
   public static final int TUNNEL_DOWN = 2;
   public static final int SESSION_UP = 4;
   public static final int SESSION_DOWN = 8;
   public static final int SESSION_DATA = 16;
+  public static final int SESSION_ACCM = 32;
+  public static final int SESSION_DATA_BATCH = 64;
 
   // Control Connection States
   public static final int TUNNEL_STATE_IDLE = 0;
   public static final int TUNNEL_STATE_WAIT_CTL_REPLY = 1;
   public static final int TUNNEL_STATE_WAIT_CTL_CONN = 2;
   public static final int TUNNEL_STATE_ESTABLISHED = 3;
+  // Torn down by us, waiting for the StopCCN to be acknowledged
+  public static final int TUNNEL_STATE_CLOSING = 4;
 
   // LAC Incoming Call States
   public static final int SESSION_STATE_IDLE = 0;
@@ -36,455 +55,318 @@ public class L2tpClient implements Runnable
   public static final int SESSION_STATE_WAIT_REPLY = 2;
   public static final int SESSION_STATE_ESTABLISHED = 3;
 
-  // This class only provides a single session over a single tunnel.
-  private static final short LOCAL_TUNNEL_ID = 1;
-  private static final short LOCAL_SESSION_ID = 1;
-
-  private InetAddress addr;
-  private int port;
-  private byte[] secret;
-  private DatagramSocket socket = new DatagramSocket();
-  private Handler handler;
-  private Thread listenThread;
-  private Object tunnelLock = new Object();
-  private Object sessionLock = new Object();
-  private int tunnelState;
-  private int sessionState;
-  private short peerTunnelId;
-  private short peerSessionId;
-  private short sequenceNo;
-  private short expectedSequenceNo;
-  private List<L2tpPacket> packetSendQueue;
-  private int receiveWindowSize;
-  private int sessionSerial;
-  private boolean sequencingRequired;
-
-  public L2tpClient(InetAddress addr, int port) throws SocketException {
-    this.addr = addr;
-    this.port = port;
-
-    init();
-
-    listenThread = new Thread(this);
-    listenThread.start();
-  }
-
-  private void init() {
-    tunnelState = TUNNEL_STATE_IDLE;
-    sessionState = SESSION_STATE_IDLE;
-    peerTunnelId = 0;
-    peerSessionId = 0;
-    sequenceNo = 0;
-    expectedSequenceNo = 0;
-    packetSendQueue = new ArrayList<L2tpPacket>();
-    receiveWindowSize = 4;
-    sessionSerial = 0;
-  }
-
-  private void initSession() {
-    sessionState = SESSION_STATE_IDLE;
-    peerSessionId = 0;
+  // Large enough for a full size PPP frame plus L2TP/UDP overhead
+  private static final int BUFFER_SIZE = 2048;
+  private static final int POOL_SIZE = 32;
+
+  // Room to leave in front of a frame passed to sendData(), enough for
+  // the largest data header (flags, length, ids, Ns/Nr)
+  public static final int DATA_HEADER_SPACE = 12;
+
+  private static final int TIMER_TICK = 50;
+  private static final int TIMER_BUCKETS = 256;
+
+  // Most datagrams read off one socket per wakeup, so a busy tunnel
+  // can't starve the others or the timers
+  static final int RECEIVE_BATCH = 32;
+
+  private BufferPool bufferPool = new BufferPool(BUFFER_SIZE, POOL_SIZE);
+  private volatile Handler handler;
+  private Selector selector;
+  private Thread loopThread;
+  private ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+  private TimerWheel timerWheel = new TimerWheel(TIMER_TICK, TIMER_BUCKETS);
+  private L2tpAvpRegistry avpRegistry = new L2tpAvpRegistry();
+  // Tunnels by local id, loop thread only
+  private IdMap<L2tpTunnel> tunnels = new IdMap<L2tpTunnel>();
+  private IdAllocator tunnelIds = new IdAllocator();
+  private L2tpPacketView view = new L2tpPacketView();
+  private ByteBuffer[] receiveBatch = new ByteBuffer[RECEIVE_BATCH];
+  // receiveBatchSizes[n] counts the wakeups that drained n datagrams
+  private int[] receiveBatchSizes = new int[RECEIVE_BATCH + 1];
+  private volatile boolean batchDelivery;
+  // Sessions holding data for the handler, loop thread only
+  private ArrayList<L2tpSession> pendingBatches = new ArrayList<L2tpSession>();
+  private volatile int batchAllocationCount;  // Bumped on the loop only
+
+  public L2tpClient() throws IOException {
+    selector = Selector.open();
+
+    loopThread = new Thread(new Runnable() {
+      public void run() {
+        loop();
+      }
+    });
+    loopThread.start();
   }
 
   protected void finalize() throws Throwable {
-    socket.close();
-
-    listenThread.join();
+    shutdown();
+    loopThread.join();
   }
 
-  public void handler(Handler handler) {
-    handler = handler;
-  }
-
-  public boolean startTunnel() {
-    synchronized (tunnelLock) {
-      if (tunnelState == TUNNEL_STATE_ESTABLISHED)
-        return true;
-      if (tunnelState != TUNNEL_STATE_IDLE)
-        return false;
-      tunnelState = TUNNEL_STATE_WAIT_CTL_REPLY;
-
-      sendSCCRQ();
-
-      try {
-        tunnelLock.wait();
-      } catch (InterruptedException e) {
-        Log.d("L2tpClient", "InterruptedException");
+  // Stops the event loop.  Tunnels still open are dropped without telling
+  // their peers.
+  public void shutdown() {
+    post(new Runnable() {
+      public void run() {
+        try {
+          selector.close();
+        } catch (IOException e) {
+          Log.d("L2tpClient", "selector close failed");
+        }
       }
-
-      return tunnelState == TUNNEL_STATE_ESTABLISHED;
-    }
+    });
   }
 
-  public void stopTunnel() {
-    synchronized (tunnelLock) {
-      if (tunnelState == TUNNEL_STATE_IDLE)
-        return;
-
-      synchronized (sessionLock) {
-        stopSession();
-
-        sendStopCCN();
-
-        init();
-      }
-    }
+  public void handler(Handler handler) {
+    this.handler = handler;
   }
 
-  public boolean startSession() {
-    synchronized (tunnelLock) {
-      if (!startTunnel())
-	return false;
-
-      synchronized (sessionLock) {
-        if (sessionState == SESSION_STATE_ESTABLISHED)
-          return true;
-	if (sessionState != SESSION_STATE_IDLE)
-	  return false;
-	sessionState = SESSION_STATE_WAIT_REPLY;
-
-	sendICRQ();
-
-	try {
-	  sessionLock.wait();
-	} catch (InterruptedException e) {
-	  Log.d("L2tpClient", "InterruptedException");
-	}
-
-	return sessionState == SESSION_STATE_ESTABLISHED;
-      }
-    }
+  // SESSION_DATA payloads are pooled buffers; the handler must give them
+  // back once it has written them out.
+  public void releaseBuffer(ByteBuffer buf) {
+    bufferPool.release(buf);
   }
 
-  public void stopSession() {
-    synchronized (sessionLock) {
-      if (sessionState == SESSION_STATE_IDLE)
-        return;
-
-      sendCDN();
-
-      initSession();
+  // Gives back the payloads of a SESSION_DATA_BATCH and the batch itself
+  public void releaseBatch(L2tpDataBatch batch) {
+    for (int i = 0; i < batch.size(); i++) {
+      bufferPool.release(batch.get(i));
     }
+    batch.session().recycleBatch(batch);
   }
 
-  public void sendPacket(L2tpPacket packet) {
-    packet.tunnelId(peerTunnelId);
-    packet.sessionId(peerSessionId);
-
-    boolean sequence;
-    if (packet.isControl()) {
-      sequence = true;
-      // ZLB
-      if (((L2tpControlPacket)packet).avpList.size() == 0)
-        sequence = false;
-    } else {
-      packet.sequence(sequencingRequired);
-      sequence = sequencingRequired;
-    }
-
-    // Don't queue/reliably deliver if sequencing isn't required (ZLB, data packets).
-    if (!sequence) {
-      doSendPacket(packet);
-      return;
-    }
-
-    packet.sequenceNo(sequenceNo);
-    sequenceNo++;
-
-    // Queue the packet and send it if it's in the window
-    packetSendQueue.add(packet);
-    if (packetSendQueue.size() < receiveWindowSize) {
-      doSendPacket(packet);
-    } else {
-      Log.d("L2tpClient", "Too many queued packets, not sending");
-    }
+  public int bufferAllocationCount() {
+    return bufferPool.allocationCount();
   }
 
-  void doSendPacket(L2tpPacket packet) {
-    Log.d("L2tpClient", "send packet");
-
-    packet.expectedSequenceNo(expectedSequenceNo);
-
-    byte[] data = new byte[1500];
-    int length = packet.serialize(ByteBuffer.wrap(data));
-
-    try {
-      socket.send(new DatagramPacket(data, length, addr, port));
-    } catch (IOException e) {
-      Log.d("L2tpClient", "packet send failed");
-    }
+  // Like bufferAllocationCount(), stops growing once the sessions have
+  // enough batches to go round
+  public int batchAllocationCount() {
+    return batchAllocationCount;
   }
 
-  private void sendMessage(int what, Object obj) {
-    if (handler != null) {
-      handler.sendMessage(Message.obtain(null, what, obj));
-    }
+  void batchAllocated() {
+    batchAllocationCount++;
   }
 
-  private void sendMessage(int what) {
-    sendMessage(what, null);
+  // In batch delivery mode the data that arrives for a session in one
+  // wakeup goes to the handler as a single SESSION_DATA_BATCH instead of
+  // a SESSION_DATA per packet
+  public void batchDelivery(boolean enabled) {
+    batchDelivery = enabled;
   }
 
-  void sendSCCRQ() {
-    L2tpControlPacket sccrq = new L2tpControlPacket(L2tpControlPacket.L2TP_CTRL_TYPE_SCCRQ);
-    sccrq.addAvp(new L2tpAvp(true, L2tpAvp.L2TP_AVP_PROTOCOL_VERSION, L2tpControlPacket.L2TP_PROTOCOL_V1_0));
-    sccrq.addAvp(new L2tpAvp(true, L2tpAvp.L2TP_AVP_HOST_NAME, "hostname"));
-    sccrq.addAvp(new L2tpAvp(true, L2tpAvp.L2TP_AVP_FRAMING_CAPABILITIES, (int)0));
-    sccrq.addAvp(new L2tpAvp(true, L2tpAvp.L2TP_AVP_ASSIGNED_TUNNEL_ID, LOCAL_TUNNEL_ID));
-
-    sendPacket(sccrq);
+  boolean batchDelivery() {
+    return batchDelivery;
   }
 
-  void sendSCCCN() {
-    L2tpControlPacket scccn = new L2tpControlPacket(L2tpControlPacket.L2TP_CTRL_TYPE_SCCCN);
-
-    sendPacket(scccn);
+  // How many datagrams each read wakeup drained: element n counts the
+  // wakeups that found n.  A snapshot, it may lag when taken off the loop.
+  public int[] receiveBatchHistogram() {
+    return receiveBatchSizes.clone();
   }
 
-  void sendStopCCN() {
-    L2tpControlPacket stopccn = new L2tpControlPacket(L2tpControlPacket.L2TP_CTRL_TYPE_StopCCN);
-    stopccn.addAvp(new L2tpAvp(true, L2tpAvp.L2TP_AVP_RESULT_CODE, (short)1));
-
-    sendPacket(stopccn);
+  // Called by a session that started a batch, which is handed over once
+  // the current wakeup has been dealt with
+  void batchPending(L2tpSession session) {
+    pendingBatches.add(session);
   }
 
-  void sendHELLO() {
-    L2tpControlPacket hello = new L2tpControlPacket(L2tpControlPacket.L2TP_CTRL_TYPE_HELLO);
-
-    sendPacket(hello);
+  private void flushBatches() {
+    if (pendingBatches.isEmpty()) {
+      return;
+    }
+    for (int i = 0; i < pendingBatches.size(); i++) {
+      pendingBatches.get(i).flushBatch();
+    }
+    pendingBatches.clear();
   }
 
-  void sendZLB() {
-    L2tpControlPacket zlb = new L2tpControlPacket();
-
-    sendPacket(zlb);
+  BufferPool bufferPool() {
+    return bufferPool;
   }
 
-  void sendICRQ() {
-    L2tpControlPacket icrq = new L2tpControlPacket(L2tpControlPacket.L2TP_CTRL_TYPE_ICRQ);
-    icrq.addAvp(new L2tpAvp(true, L2tpAvp.L2TP_AVP_ASSIGNED_SESSION_ID, LOCAL_SESSION_ID));
-    icrq.addAvp(new L2tpAvp(true, L2tpAvp.L2TP_AVP_CALL_SERIAL_NUMBER, sessionSerial++));
-
-    sendPacket(icrq);
+  TimerWheel timerWheel() {
+    return timerWheel;
   }
 
-  void sendICCN() {
-    L2tpControlPacket iccn = new L2tpControlPacket(L2tpControlPacket.L2TP_CTRL_TYPE_ICCN);
-    iccn.addAvp(new L2tpAvp(true, L2tpAvp.L2TP_AVP_CONNECT_SPEED, (int)0));
-    iccn.addAvp(new L2tpAvp(true, L2tpAvp.L2TP_AVP_FRAMING_TYPE, (short)0));
-
-    sendPacket(iccn);
+  L2tpAvpRegistry avpRegistry() {
+    return avpRegistry;
   }
 
-  void sendCDN() {
-    L2tpControlPacket cdn = new L2tpControlPacket(L2tpControlPacket.L2TP_CTRL_TYPE_CDN);
-    cdn.addAvp(new L2tpAvp(true, L2tpAvp.L2TP_AVP_ASSIGNED_SESSION_ID, LOCAL_SESSION_ID));
-    cdn.addAvp(new L2tpAvp(true, L2tpAvp.L2TP_AVP_RESULT_CODE, (int)3));
-
-    sendPacket(cdn);
+  // Runs task on the event loop thread, after the tasks posted before it
+  public void post(Runnable task) {
+    tasks.add(task);
+    selector.wakeup();
   }
 
-  public void run() {
-    while (true) {
-      byte[] data = new byte[1500];
-      DatagramPacket packet = new DatagramPacket(data, data.length);
-
-      try {
-        socket.receive(packet);
-      } catch (IOException e) {
-        Log.d("L2tpClient", "socket read failed");
-        break;
-      }
-
-      ByteBuffer buf = ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
-      L2tpPacket l2tpPacket = L2tpPacket.parse(buf, secret);
-
-      if (l2tpPacket.isControl()) {
-        handleControlPacket((L2tpControlPacket)l2tpPacket);
-      } else {
-        Log.d("L2tpClient", "DATA packet");
-        sendMessage(SESSION_DATA, l2tpPacket.payload());
-      }
-    }
+  boolean inLoop() {
+    return Thread.currentThread() == loopThread;
   }
 
-  void handleControlPacket(L2tpControlPacket packet) {
-    Log.d("L2tpClient", "control packet: " +
-          "Ns=" + packet.sequenceNo() + ", " +
-          "Nr=" + packet.expectedSequenceNo());
-
-    if (packet.tunnelId() != LOCAL_TUNNEL_ID) {
-      Log.d("L2tpClient", "bad tunnel id");
-      return;
+  // A new idle tunnel to the LNS at addr, with a socket of its own.
+  // Returns null if every tunnel id is in use.
+  public L2tpTunnel openTunnel(InetAddress addr, int port) throws IOException {
+    int id = tunnelIds.allocate();
+    if (id < 0) {
+      return null;
     }
 
-    Log.d("L2tpClient", "queue size: " + packetSendQueue.size());
-    // Remove any acknowledged packets from the queue
-    while (!packetSendQueue.isEmpty() &&
-           packetSendQueue.get(0).sequenceNo() < packet.expectedSequenceNo()) {
-      Log.d("L2tpClient", "removing queued entry");
-      packetSendQueue.remove(0);
-
-      // Send any new packet that has been shifted into the window
-      if (packetSendQueue.size() >= receiveWindowSize) {
-        Log.d("L2tpClient", "sending queued entry");
-        sendPacket(packetSendQueue.get(receiveWindowSize-1));
-      }
+    final L2tpTunnel tunnel;
+    try {
+      tunnel = new L2tpTunnel(this, (short)id, addr, port);
+    } catch (IOException e) {
+      tunnelIds.free(id);
+      throw e;
     }
 
-    if (packet.avpList.size() == 0) {  // ZLB
-      Log.d("L2tpClient", "got ZLB");
-      return;
-    }
+    // Registering blocks while the selector is selecting, so it is done
+    // on the loop
+    post(new Runnable() {
+      public void run() {
+        try {
+          tunnel.channel().register(selector, SelectionKey.OP_READ, tunnel);
+        } catch (IOException e) {
+          Log.d("L2tpClient", "register failed");
+          return;
+        }
+        tunnels.put(tunnel.localId(), tunnel);
+      }
+    });
+    return tunnel;
+  }
 
-    if (packet.sequenceNo() != expectedSequenceNo) {
-      Log.d("L2tpClient", "bad sequence # " + packet.sequenceNo() + " != " + expectedSequenceNo);
-      sendZLB();
+  // Called on the loop by L2tpTunnel.close()
+  void closeTunnel(L2tpTunnel tunnel) {
+    if (tunnels.get(tunnel.localId()) != tunnel) {
       return;
     }
+    tunnels.remove(tunnel.localId());
+    tunnelIds.free(tunnel.localId());
+  }
 
-    expectedSequenceNo++;
-
-    try {
-      switch (packet.messageType()) {
-        case L2tpControlPacket.L2TP_CTRL_TYPE_SCCRP:
-          handleSCCRP(packet);
-          break;
-        case L2tpControlPacket.L2TP_CTRL_TYPE_StopCCN:
-          handleStopCCN(packet);
-          break;
-        case L2tpControlPacket.L2TP_CTRL_TYPE_HELLO:
-          handleHELLO(packet);
-          break;
-        case L2tpControlPacket.L2TP_CTRL_TYPE_ICRP:
-          handleICRP(packet);
-          break;
-        case L2tpControlPacket.L2TP_CTRL_TYPE_CDN:
-          handleCDN(packet);
-          break;
-        default:
-          Log.d("L2tpClient", "unknown message type");
-          break;
-      }
-    } catch (Exception e) {
-      Log.d("L2tpClient", "caught exception in handler: " + e.getMessage());
-      e.printStackTrace();
-    }
+  // Loop thread only
+  L2tpTunnel tunnel(short localId) {
+    return tunnels.get(localId);
   }
 
-  void handleSCCRP(L2tpControlPacket packet) throws AvpFormatInvalidException {
-    Log.d("L2tpClient", "handleSCCRP");
+  void loop() {
+    while (selector.isOpen()) {
+      Runnable task;
+      while ((task = tasks.poll()) != null) {
+        try {
+          task.run();
+        } catch (RuntimeException e) {
+          Log.d("L2tpClient", "caught exception in task: " + e.getMessage());
+          e.printStackTrace();
+        }
+      }
 
-    synchronized (tunnelLock) {
-      if (tunnelState != TUNNEL_STATE_WAIT_CTL_REPLY) {
-        Log.d("L2tpClient", "not in wait-ctl-reply");
-        return;
+      try {
+        long delay = timerWheel.nextTickDelay();
+        if (!tasks.isEmpty() || delay == 0) {
+          selector.selectNow();
+        } else if (delay < 0) {
+          selector.select();
+        } else {
+          selector.select(delay);
+        }
+      } catch (IOException e) {
+        Log.d("L2tpClient", "select failed");
+        break;
+      } catch (ClosedSelectorException e) {
+        break;
       }
 
-      for (ListIterator<L2tpAvp> it = packet.avpList.listIterator(); it.hasNext();) {
-	L2tpAvp avp = it.next();
-	switch (avp.type) {
-          case L2tpAvp.L2TP_AVP_MESSAGE_TYPE:
-          case L2tpAvp.L2TP_AVP_FRAMING_CAPABILITIES:
-          case L2tpAvp.L2TP_AVP_HOST_NAME:
-            break;
-	  case L2tpAvp.L2TP_AVP_PROTOCOL_VERSION:
-	    if (avp.value.limit() != 2 || avp.value.getShort(0) != L2tpControlPacket.L2TP_PROTOCOL_V1_0) {
-	      Log.d("L2tpClient", "bad Protocol-Version");
-	      throw new AvpFormatInvalidException();
-	    }
-	    break;
-	  case L2tpAvp.L2TP_AVP_ASSIGNED_TUNNEL_ID:
-	    if (avp.value.limit() != 2 || (peerTunnelId = avp.value.getShort(0)) == 0) {
-	      Log.d("L2tpClient", "bad Tunnel-Id");
-	      throw new AvpFormatInvalidException();
-	    }
-	    break;
-	  case L2tpAvp.L2TP_AVP_RECEIVE_WINDOW_SIZE:
-	    if (avp.value.limit() != 2 || (receiveWindowSize = avp.value.getShort(0)) < 1) {
-	      Log.d("L2tpClient", "bad Receive-Window-Size");
-	      continue;
-	    }
-	    break;
-	  default:
-	    Log.d("L2tpClient", "unknown avp type=" + avp.type);
-	    if (avp.isMandatory)
-	      throw new RuntimeException();  // FIXME
-	    break;
-	}
+      Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+      while (it.hasNext()) {
+        SelectionKey key = it.next();
+        it.remove();
+        if (key.isValid() && key.isReadable()) {
+          read((L2tpTunnel)key.attachment());
+        }
       }
 
-      tunnelState = TUNNEL_STATE_ESTABLISHED;
+      timerWheel.advance();
 
-      sendSCCCN();
-      sendMessage(TUNNEL_UP);
-      tunnelLock.notify();
+      // Data from the reads, and any released from reordering by the
+      // timers, goes out as one batch per session
+      flushBatches();
     }
-  }
 
-  void handleHELLO(L2tpControlPacket packet) {
-    Log.d("L2tpClient", "handleHELLO");
-
-    sendZLB();
+    Log.d("L2tpClient", "event loop stopped");
   }
 
-  void handleICRP(L2tpControlPacket packet) throws AvpFormatInvalidException {
-    Log.d("L2tpClient", "handleICRP");
+  // Drains what is waiting on a tunnel's socket into a batch of pooled
+  // buffers, one read per datagram until the socket has nothing more,
+  // then processes the batch
+  private void read(L2tpTunnel tunnel) {
+    int count = 0;
+    while (count < RECEIVE_BATCH) {
+      ByteBuffer buf = bufferPool.acquire();
 
-    synchronized (sessionLock) {
-      if (sessionState != SESSION_STATE_WAIT_REPLY) {
-        Log.d("L2tpClient", "not in wait-reply");
-        return;
+      int length;
+      try {
+        length = tunnel.channel().read(buf);
+      } catch (IOException e) {
+        // Most likely an ICMP error for an earlier send, the socket is
+        // still usable
+        Log.d("L2tpClient", "socket read failed: " + e.getMessage());
+        bufferPool.release(buf);
+        break;
       }
-
-      for (ListIterator<L2tpAvp> it = packet.avpList.listIterator(); it.hasNext();) {
-	L2tpAvp avp = it.next();
-	switch (avp.type) {
-          case L2tpAvp.L2TP_AVP_MESSAGE_TYPE:
-            break;
-	  case L2tpAvp.L2TP_AVP_ASSIGNED_SESSION_ID:
-            if (avp.value.limit() != 2 || (peerSessionId = avp.value.getShort(0)) == 0) {
-	      Log.d("L2tpClient", "bad Session-Id");
-	      throw new AvpFormatInvalidException();
-            }
-            break;
-	  default:
-	    Log.d("L2tpClient", "unknown avp type=" + avp.type);
-	    if (avp.isMandatory)
-	      throw new RuntimeException();  // FIXME
-	    break;
-	}
+      if (length <= 0) {
+        bufferPool.release(buf);
+        break;
       }
 
-      sessionState = SESSION_STATE_ESTABLISHED;
-
-      sendICCN();
-      sendMessage(SESSION_UP);
-      sessionLock.notify();
+      buf.flip();
+      receiveBatch[count++] = buf;
+    }
+    receiveBatchSizes[count]++;
+
+    for (int i = 0; i < count; i++) {
+      ByteBuffer buf = receiveBatch[i];
+      receiveBatch[i] = null;
+      if (!view.wrap(buf)) {
+        bufferPool.release(buf);
+        continue;
+      }
+      demux(tunnel, view, buf);
     }
   }
 
-  void handleCDN(L2tpControlPacket packet) {
-    Log.d("L2tpClient", "handleICRP");
-
-    synchronized (sessionLock) {
-      sessionState = SESSION_STATE_IDLE;
-      peerSessionId = 0;
-
-      sendZLB();
-      sendMessage(SESSION_DOWN);
+  // Hands a datagram to the tunnel named by the tunnel id in its header,
+  // which passes data on to the session named by the session id.  A
+  // packet must also have come in on that tunnel's own socket.
+  void demux(L2tpTunnel from, L2tpPacketView view, ByteBuffer buf) {
+    L2tpTunnel tunnel = tunnels.get(view.tunnelId());
+    if (tunnel != from) {
+      Log.d("L2tpClient", "bad tunnel id " + (view.tunnelId() & 0xffff));
+      bufferPool.release(buf);
+      return;
     }
+    tunnel.receive(view, buf);
   }
 
-  void handleStopCCN(L2tpControlPacket packet) {
-    Log.d("L2tpClient", "handleStopCCN");
-
-    synchronized (tunnelLock) {
-      tunnelState = TUNNEL_STATE_IDLE;
-      peerTunnelId = 0;
+  // Returns false if there is no handler to take the message
+  boolean sendMessage(int what, Object obj) {
+    Handler handler = this.handler;
+    if (handler == null) {
+      return false;
+    }
+    handler.sendMessage(Message.obtain(null, what, obj));
+    return true;
+  }
 
-      sendZLB();
-      sendMessage(TUNNEL_DOWN);
+  boolean sendMessage(int what, int arg1, int arg2, Object obj) {
+    Handler handler = this.handler;
+    if (handler == null) {
+      return false;
     }
+    handler.sendMessage(Message.obtain(null, what, arg1, arg2, obj));
+    return true;
   }
 }
@@ -0,0 +1,81 @@
+package com.theusualco.L2tpTether;
+
+import java.lang.InterruptedException;
+
+import android.os.SystemClock;
+
+// The outcome of L2tpTunnel.startAsync() or L2tpSession.startAsync(),
+// settled once on the client's event loop.  Callers either block in
+// await() or set a listener, which runs on the loop thread and so must not
+// block.
+public class L2tpCompletion {
+  public interface Listener {
+    void onComplete(L2tpCompletion completion);
+  }
+
+  private boolean done;
+  private boolean success;
+  private Listener listener;
+  TimerWheel.Timeout deadline;  // Loop thread only
+
+  public synchronized boolean isDone() {
+    return done;
+  }
+
+  // False while not done
+  public synchronized boolean isSuccess() {
+    return success;
+  }
+
+  // Runs listener once done, straight away on the calling thread if that
+  // has already happened
+  public void listener(Listener listener) {
+    synchronized (this) {
+      if (!done) {
+        this.listener = listener;
+        return;
+      }
+    }
+    listener.onComplete(this);
+  }
+
+  // Blocks for up to timeoutMillis, 0 meaning for as long as it takes.
+  // Returns whether the start succeeded, false if it is still under way.
+  public synchronized boolean await(long timeoutMillis) {
+    long end = SystemClock.elapsedRealtime() + timeoutMillis;
+    while (!done) {
+      long wait = 0;
+      if (timeoutMillis > 0) {
+        wait = end - SystemClock.elapsedRealtime();
+        if (wait <= 0) {
+          break;
+        }
+      }
+      try {
+        wait(wait);
+      } catch (InterruptedException e) {
+        break;
+      }
+    }
+    return success;
+  }
+
+  // Only the first call counts.  Returns false if already done.
+  boolean complete(boolean success) {
+    Listener listener;
+    synchronized (this) {
+      if (done) {
+        return false;
+      }
+      done = true;
+      this.success = success;
+      listener = this.listener;
+      this.listener = null;
+      notifyAll();
+    }
+    if (listener != null) {
+      listener.onComplete(this);
+    }
+    return true;
+  }
+}
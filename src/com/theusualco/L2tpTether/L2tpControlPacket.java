@@ -2,6 +2,7 @@ package com.theusualco.L2tpTether;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.ListIterator;
 
@@ -33,7 +34,34 @@ public class L2tpControlPacket extends L2tpPacket
 
   static final short L2TP_PROTOCOL_V1_0 = 0x100;
 
-  public List<L2tpAvp> avpList = new ArrayList<L2tpAvp>();
+  // Flags, Length, Tunnel ID, Session ID, Ns, Nr
+  static final int L2TP_CTRL_HEADER_LENGTH = 12;
+
+  // No template needs more AVP values patched than this
+  private static final int MAX_PATCHES = 2;
+
+  private static final List<L2tpAvp> NO_AVPS = Collections.emptyList();
+
+  // Packets built for sending keep their AVPs in a list, made by the first
+  // addAvp().  Received packets only index where each AVP starts; values
+  // are decoded, and hidden ones unhidden, the first time a handler asks
+  // for them.
+  public List<L2tpAvp> avpList = NO_AVPS;
+  private ByteBuffer mAvpData;
+  private int[] mAvpOffsets;
+  private int mAvpCount;
+  private L2tpAvp[] mAvps;
+  private byte[] mSecret;
+  private boolean mValid = true;
+  private L2tpControlTemplate mTemplate;
+  private byte[] mEncoded;
+  // Values written over the template's AVPs as it is copied out
+  private int mPatchCount;
+  private int mPatchOffset0, mPatchOffset1;
+  private int mPatchValue0, mPatchValue1;
+  private boolean mPatchShort0, mPatchShort1;
+  private long mSentAt;
+  private int mTransmissions;
 
   public L2tpControlPacket() {
     super();
@@ -50,6 +78,12 @@ public class L2tpControlPacket extends L2tpPacket
     addAvp(new L2tpAvp(true, L2tpAvp.L2TP_AVP_MESSAGE_TYPE, messageType));
   }
 
+  public L2tpControlPacket(L2tpControlTemplate template) {
+    this();
+    mTemplate = template;
+    mEncoded = template.encoded();
+  }
+
   public L2tpControlPacket(short tunnelId,
                            short sessionId,
                            short sequenceNo,
@@ -63,38 +97,275 @@ public class L2tpControlPacket extends L2tpPacket
           tunnelId, sessionId, sequenceNo, expectedSequenceNo,
           null,  // Padding
           null);  // Payload
+    mSecret = secret;
     if (payload != null) {
-      init(payload, secret);
+      index(payload);
+    }
+  }
+
+  // Records the offset of each AVP, checking only that the lengths add up.
+  private void index(ByteBuffer src) {
+    mAvpData = src;
+    mAvpOffsets = new int[8];
+
+    int pos = src.position();
+    int limit = src.limit();
+    while (pos < limit) {
+      if (limit - pos < L2tpAvp.L2TP_AVP_HEADER_MINIMUM_LENGTH) {
+        mValid = false;
+        break;
+      }
+      int length = src.getShort(pos) & L2tpAvp.L2TP_AVP_HEADER_LENGTH_MASK;
+      if (length < L2tpAvp.L2TP_AVP_HEADER_MINIMUM_LENGTH || length > limit - pos) {
+        mValid = false;
+        break;
+      }
+
+      if (mAvpCount == mAvpOffsets.length) {
+        int[] offsets = new int[mAvpCount * 2];
+        System.arraycopy(mAvpOffsets, 0, offsets, 0, mAvpCount);
+        mAvpOffsets = offsets;
+      }
+      mAvpOffsets[mAvpCount++] = pos;
+      pos += length;
+    }
+
+    mAvps = new L2tpAvp[mAvpCount];
+  }
+
+  // Copies the AVPs out of the receive buffer, for a packet that has to
+  // outlive it
+  void detach() {
+    if (mAvpData == null) {
+      return;
+    }
+    ByteBuffer copy = ByteBuffer.allocate(mAvpData.limit());
+    ByteBuffer src = mAvpData.duplicate();
+    src.clear();
+    copy.put(src);
+    copy.clear();
+    mAvpData = copy;
+    mAvps = new L2tpAvp[mAvpCount];
+  }
+
+  // A received packet is usable if its AVPs are well formed and the first
+  // one is a plain two byte Message Type
+  boolean isValid() {
+    if (mAvpOffsets == null || mAvpCount == 0) {
+      return mValid;
+    }
+    int field = mAvpData.getShort(mAvpOffsets[0]);
+    return mValid &&
+        avpVendor(0) == L2tpAvp.L2TP_AVP_IETF_VENDOR_ID &&
+        avpType(0) == L2tpAvp.L2TP_AVP_MESSAGE_TYPE &&
+        (field & L2tpAvp.L2TP_AVP_HEADER_HIDDEN_MASK) == 0 &&
+        (field & L2tpAvp.L2TP_AVP_HEADER_LENGTH_MASK) == L2tpAvp.L2TP_AVP_HEADER_MINIMUM_LENGTH + 2;
+  }
+
+  boolean isZLB() {
+    return avpCount() == 0;
+  }
+
+  int avpCount() {
+    if (mTemplate != null) {
+      return mTemplate.avpCount();
+    }
+    return mAvpOffsets != null ? mAvpCount : avpList.size();
+  }
+
+  int avpVendor(int index) {
+    if (mAvpOffsets == null) {
+      return avpList.get(index).vendorId;
+    }
+    return mAvpData.getShort(mAvpOffsets[index] + 2) & 0xffff;
+  }
+
+  int avpType(int index) {
+    if (mAvpOffsets == null) {
+      return avpList.get(index).type;
+    }
+    return mAvpData.getShort(mAvpOffsets[index] + 4) & 0xffff;
+  }
+
+  // Length of the value as it sits in the packet, hidden or not
+  int avpValueLength(int index) {
+    return (mAvpData.getShort(mAvpOffsets[index]) & L2tpAvp.L2TP_AVP_HEADER_LENGTH_MASK) -
+        L2tpAvp.L2TP_AVP_HEADER_MINIMUM_LENGTH;
+  }
+
+  // Reads an unhidden value straight from the packet
+  short avpShort(int index) {
+    return mAvpData.getShort(mAvpOffsets[index] + L2tpAvp.L2TP_AVP_HEADER_MINIMUM_LENGTH);
+  }
+
+  int avpInt(int index) {
+    return mAvpData.getInt(mAvpOffsets[index] + L2tpAvp.L2TP_AVP_HEADER_MINIMUM_LENGTH);
+  }
+
+  long avpLong(int index) {
+    return mAvpData.getLong(mAvpOffsets[index] + L2tpAvp.L2TP_AVP_HEADER_MINIMUM_LENGTH);
+  }
+
+  boolean avpMandatory(int index) {
+    if (mAvpOffsets == null) {
+      return avpList.get(index).isMandatory;
     }
+    return (mAvpData.getShort(mAvpOffsets[index]) & L2tpAvp.L2TP_AVP_HEADER_MANDATORY_MASK) != 0;
   }
 
-  private void init(ByteBuffer src, byte[] secret) {
-    byte[] random = null;
-    while (src.hasRemaining()) {
-      L2tpAvp avp = L2tpAvp.parse(src, secret, random);
-      avpList.add(avp);
+  boolean avpHidden(int index) {
+    return mAvpOffsets != null &&
+        (mAvpData.getShort(mAvpOffsets[index]) & L2tpAvp.L2TP_AVP_HEADER_HIDDEN_MASK) != 0;
+  }
 
-      if (avp.type == L2tpAvp.L2TP_AVP_RANDOM_VECTOR) {
-        random = new byte[avp.value.limit()];
-        avp.value.get(random);
+  // Decodes the AVP at index on first use
+  L2tpAvp avp(int index) throws AvpFormatInvalidException {
+    if (mAvpOffsets == null) {
+      return avpList.get(index);
+    }
+    L2tpAvp avp = mAvps[index];
+    if (avp == null) {
+      byte[] random = null;
+      if (avpHidden(index)) {
+        // Hidden values use the closest preceding Random Vector
+        for (int i = index - 1; i >= 0; i--) {
+          if (avpVendor(i) == L2tpAvp.L2TP_AVP_IETF_VENDOR_ID &&
+              avpType(i) == L2tpAvp.L2TP_AVP_RANDOM_VECTOR) {
+            ByteBuffer value = avp(i).value;
+            random = new byte[value.limit()];
+            value.get(random, 0, random.length);
+            value.position(0);
+            break;
+          }
+        }
       }
+
+      ByteBuffer src = mAvpData.duplicate();
+      src.position(mAvpOffsets[index]);
+      avp = L2tpAvp.parse(src, mSecret, random);
+      mAvps[index] = avp;
     }
+    return avp;
+  }
+
+  // Returns the index of the first IETF AVP of the given type, or -1
+  int findAvp(int type) {
+    int count = avpCount();
+    for (int i = 0; i < count; i++) {
+      if (avpVendor(i) == L2tpAvp.L2TP_AVP_IETF_VENDOR_ID && avpType(i) == type) {
+        return i;
+      }
+    }
+    return -1;
   }
 
   int messageType() {
-    L2tpAvp avp = avpList.get(0);
-    assert avp.type == L2tpAvp.L2TP_AVP_MESSAGE_TYPE;
-    assert avp.value.limit() == 2;
-    return avp.value.getShort(0);
+    if (mTemplate != null) {
+      return mTemplate.messageType();
+    }
+    if (mAvpOffsets == null) {
+      L2tpAvp avp = avpList.get(0);
+      assert avp.type == L2tpAvp.L2TP_AVP_MESSAGE_TYPE;
+      assert avp.value.limit() == 2;
+      return avp.value.getShort(0);
+    }
+
+    // Checked by isValid(), read it straight from the header
+    return mAvpData.getShort(mAvpOffsets[0] + L2tpAvp.L2TP_AVP_HEADER_MINIMUM_LENGTH);
   }
 
   void addAvp(L2tpAvp avp) {
     if (avpList.isEmpty()) {
       assert avp.type == L2tpAvp.L2TP_AVP_MESSAGE_TYPE;
+      avpList = new ArrayList<L2tpAvp>();
     }
     avpList.add(avp);
   }
 
+  // Retransmission bookkeeping, kept by L2tpTunnel
+  void markSent(long now) {
+    mSentAt = now;
+    mTransmissions++;
+  }
+
+  long sentAt() {
+    return mSentAt;
+  }
+
+  int transmissions() {
+    return mTransmissions;
+  }
+
+  // Sets the value of a four byte AVP in a packet made from a template
+  void patchInt(int type, int value) {
+    patch(mTemplate.valueOffset(type, 4), value, false);
+  }
+
+  void patchShort(int type, short value) {
+    patch(mTemplate.valueOffset(type, 2), value, true);
+  }
+
+  private void patch(int offset, int value, boolean isShort) {
+    if (mPatchCount > 0 && mPatchOffset0 == offset) {
+      mPatchValue0 = value;
+    } else if (mPatchCount > 1 && mPatchOffset1 == offset) {
+      mPatchValue1 = value;
+    } else if (mPatchCount == 0) {
+      mPatchOffset0 = offset;
+      mPatchValue0 = value;
+      mPatchShort0 = isShort;
+      mPatchCount = 1;
+    } else if (mPatchCount == 1) {
+      mPatchOffset1 = offset;
+      mPatchValue1 = value;
+      mPatchShort1 = isShort;
+      mPatchCount = 2;
+    } else {
+      throw new IllegalStateException("more than " + MAX_PATCHES + " patches");
+    }
+  }
+
+  private static void putValue(ByteBuffer dest, int offset, int value, boolean isShort) {
+    if (isShort) {
+      dest.putShort(offset, (short)value);
+    } else {
+      dest.putInt(offset, value);
+    }
+  }
+
+  @Override
+  int encodedLength() {
+    if (mEncoded != null) {
+      return mEncoded.length;
+    }
+    int length = L2TP_CTRL_HEADER_LENGTH;
+    for (ListIterator<L2tpAvp> it = avpList.listIterator(); it.hasNext(); ) {
+      length += L2tpAvp.L2TP_AVP_HEADER_MINIMUM_LENGTH + it.next().value.limit();
+    }
+    return length;
+  }
+
+  @Override
+  int serialize(ByteBuffer dest) {
+    if (mEncoded == null) {
+      return super.serialize(dest);
+    }
+
+    int start = dest.position();
+    dest.put(mEncoded);
+    dest.putShort(start + 4, mTunnelId);
+    dest.putShort(start + 6, mSessionId);
+    dest.putShort(start + 8, mSequenceNo);
+    dest.putShort(start + 10, mExpectedSequenceNo);
+    if (mPatchCount > 0) {
+      putValue(dest, start + mPatchOffset0, mPatchValue0, mPatchShort0);
+    }
+    if (mPatchCount > 1) {
+      putValue(dest, start + mPatchOffset1, mPatchValue1, mPatchShort1);
+    }
+    return mEncoded.length;
+  }
+
   @Override
   void serializePayload(ByteBuffer dest) {
     for (ListIterator<L2tpAvp> it = avpList.listIterator(); it.hasNext(); ) {
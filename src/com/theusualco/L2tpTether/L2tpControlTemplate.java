@@ -0,0 +1,67 @@
+package com.theusualco.L2tpTether;
+
+import java.nio.ByteBuffer;
+
+// A control message encoded once, header included.  Packets made from it
+// share the encoded bytes.  The header ids, Ns/Nr and any AVP values that
+// change per message (call serial numbers and the like) are written over
+// them as the packet is copied out, at offsets worked out here once.
+public class L2tpControlTemplate
+{
+  private final byte[] mEncoded;
+  private final int mAvpCount;
+  private final int mMessageType;
+  private final int[] mValueTypes;
+  private final int[] mValueOffsets;
+  private final int[] mValueLengths;
+
+  public L2tpControlTemplate(L2tpControlPacket packet) {
+    mEncoded = new byte[packet.encodedLength()];
+    ByteBuffer buf = ByteBuffer.wrap(mEncoded);
+    packet.serialize(buf);
+    mAvpCount = packet.avpCount();
+    mMessageType = mAvpCount > 0 ? packet.messageType() : -1;
+
+    mValueTypes = new int[mAvpCount];
+    mValueOffsets = new int[mAvpCount];
+    mValueLengths = new int[mAvpCount];
+    int pos = L2tpControlPacket.L2TP_CTRL_HEADER_LENGTH;
+    for (int i = 0; i < mAvpCount; i++) {
+      int length = buf.getShort(pos) & L2tpAvp.L2TP_AVP_HEADER_LENGTH_MASK;
+      mValueTypes[i] = buf.getInt(pos + 2);
+      mValueOffsets[i] = pos + L2tpAvp.L2TP_AVP_HEADER_MINIMUM_LENGTH;
+      mValueLengths[i] = length - L2tpAvp.L2TP_AVP_HEADER_MINIMUM_LENGTH;
+      pos += length;
+    }
+  }
+
+  L2tpControlPacket newPacket() {
+    return new L2tpControlPacket(this);
+  }
+
+  byte[] encoded() {
+    return mEncoded;
+  }
+
+  int avpCount() {
+    return mAvpCount;
+  }
+
+  int messageType() {
+    return mMessageType;
+  }
+
+  // Offset of the value of the first IETF AVP of the given type, checking
+  // that the value is length bytes long
+  int valueOffset(int type, int length) {
+    for (int i = 0; i < mAvpCount; i++) {
+      if (mValueTypes[i] == type) {
+        if (mValueLengths[i] != length) {
+          throw new IllegalArgumentException("avp type=" + type + " is " + mValueLengths[i] + " bytes");
+        }
+        return mValueOffsets[i];
+      }
+    }
+    throw new IllegalArgumentException("no avp type=" + type);
+  }
+}
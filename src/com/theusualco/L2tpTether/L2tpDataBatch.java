@@ -0,0 +1,47 @@
+package com.theusualco.L2tpTether;
+
+import java.nio.ByteBuffer;
+
+// Data payloads for one session handed to the handler together, as
+// SESSION_DATA_BATCH, when the client is in batch delivery mode.  The
+// payloads are pooled buffers in arrival order; the handler gives them
+// back with L2tpClient.releaseBatch() once it has written them out, and
+// the batch itself goes back to its session to be used again.  It must
+// not be touched after that.
+public class L2tpDataBatch {
+  private final L2tpSession session;
+  private final ByteBuffer[] payloads;
+  private int count;
+
+  L2tpDataBatch(L2tpSession session, int capacity) {
+    this.session = session;
+    this.payloads = new ByteBuffer[capacity];
+  }
+
+  public L2tpSession session() {
+    return session;
+  }
+
+  public int size() {
+    return count;
+  }
+
+  public ByteBuffer get(int i) {
+    return payloads[i];
+  }
+
+  void add(ByteBuffer payload) {
+    payloads[count++] = payload;
+  }
+
+  boolean isFull() {
+    return count == payloads.length;
+  }
+
+  void clear() {
+    for (int i = 0; i < count; i++) {
+      payloads[i] = null;
+    }
+    count = 0;
+  }
+}
@@ -0,0 +1,53 @@
+package com.theusualco.L2tpTether;
+
+import java.nio.ByteBuffer;
+
+// Pre-serialized header for the data packets of one session.  The flags
+// and ids never change once the session is up, so sending only needs to
+// copy the template and patch Ns and, if present, the length.
+public class L2tpDataHeader
+{
+  private final byte[] mHeader;
+  private final int mLengthOffset;
+  private final int mSequenceOffset;
+
+  public L2tpDataHeader(boolean hasLength, boolean hasSequence,
+                        short tunnelId, short sessionId) {
+    L2tpPacket packet = new L2tpPacket(false,  // isControl
+                                       hasLength, hasSequence,
+                                       false,  // isPriority
+                                       tunnelId, sessionId,
+                                       (short)0, (short)0,
+                                       null,  // Padding
+                                       ByteBuffer.allocate(0));
+    ByteBuffer buf = ByteBuffer.allocate(12);
+    int length = packet.serialize(buf);
+    mHeader = new byte[length];
+    buf.flip();
+    buf.get(mHeader);
+
+    mLengthOffset = hasLength ? 2 : -1;
+    mSequenceOffset = hasSequence ? length - 4 : -1;
+  }
+
+  int length() {
+    return mHeader.length;
+  }
+
+  boolean hasSequence() {
+    return mSequenceOffset >= 0;
+  }
+
+  // Writes the header for a packet carrying payloadLength bytes at dest's
+  // position.  Nr is reserved in data messages and left at zero.
+  void write(ByteBuffer dest, short sequenceNo, int payloadLength) {
+    int start = dest.position();
+    dest.put(mHeader);
+    if (mLengthOffset >= 0) {
+      dest.putShort(start + mLengthOffset, (short)(mHeader.length + payloadLength));
+    }
+    if (mSequenceOffset >= 0) {
+      dest.putShort(start + mSequenceOffset, sequenceNo);
+    }
+  }
+}
@@ -52,66 +52,46 @@ public class L2tpPacket
   }
 
   static public L2tpPacket parse(ByteBuffer buf, byte[] secret) {
-    int startOffset = buf.position();
-    int length = buf.remaining();
-
-    int flags = buf.getShort();
-    if ((flags & L2TP_HEADER_MASK_VERSION) != L2TP_HEADER_VERSION) {
-      Log.d("L2tpPacket", "bad l2tp version");
+    L2tpPacketView view = new L2tpPacketView();
+    if (!view.wrap(buf)) {
       return null;
     }
-    boolean isControl = (flags & L2TP_HEADER_MASK_TYPE) != 0;
-    boolean hasLength = (flags & L2TP_HEADER_MASK_LENGTH) != 0;
-    boolean hasSequence = (flags & L2TP_HEADER_MASK_SEQUENCE) != 0;
-    boolean hasOffset = (flags & L2TP_HEADER_MASK_OFFSET) != 0;
-    boolean isPriority = (flags & L2TP_HEADER_MASK_PRIORITY) != 0;
-
-    if (hasLength) {
-      int newLength = buf.getShort();
-      if (newLength > length) {
-        Log.d("L2tpPacket", "bad length");
-        return null;
-      }
-      length = newLength;
-    }
-
-    short tunnelId = buf.getShort();
-    short sessionId = buf.getShort();
+    return parse(view, secret);
+  }
 
-    short sequenceNo = 0;
-    short expectedSequenceNo = 0;
-    if (hasSequence) {
-      sequenceNo = buf.getShort();
-      expectedSequenceNo = buf.getShort();
-    }
+  // Builds a standalone packet from a wrapped view, leaving the view's
+  // buffer positioned after the packet.
+  static public L2tpPacket parse(L2tpPacketView view, byte[] secret) {
+    ByteBuffer buf = view.buffer();
+    int payloadOffset = view.payloadOffset();
+    int payloadLength = view.payloadLength();
 
     ByteBuffer padding = null;
-    if (hasOffset) {
-      short offsetLength = buf.getShort();
+    if (view.hasOffset()) {
+      buf.limit(payloadOffset).position(payloadOffset - view.offsetSize());
       padding = buf.slice();
-      padding.limit(offsetLength);
-      buf.position(buf.position() + offsetLength);
     }
 
     ByteBuffer payload = null;
-    int payloadLength = length - (buf.position() - startOffset);
+    buf.limit(payloadOffset + payloadLength).position(payloadOffset);
     if (payloadLength > 0) {
       payload = buf.slice();
-      payload.limit(payloadLength);
-      buf.position(buf.position() + payloadLength);
     }
+    buf.position(buf.limit());
 
-    if (isControl) {
-      if (!hasLength || !hasSequence || padding != null || isPriority) {
+    if (view.isControl()) {
+      if (!view.hasLength() || !view.hasSequence() || padding != null || view.isPriority()) {
         Log.d("L2tpPacket", "bad fields in control packet");
         return null;
       }
 
-      return new L2tpControlPacket(tunnelId, sessionId, sequenceNo, expectedSequenceNo,
+      return new L2tpControlPacket(view.tunnelId(), view.sessionId(),
+                                   view.sequenceNo(), view.expectedSequenceNo(),
                                    payload, secret);
     } else {
-      return new L2tpPacket(isControl, hasLength, hasSequence, isPriority,
-                            tunnelId, sessionId, sequenceNo, expectedSequenceNo,
+      return new L2tpPacket(false, view.hasLength(), view.hasSequence(), view.isPriority(),
+                            view.tunnelId(), view.sessionId(),
+                            view.sequenceNo(), view.expectedSequenceNo(),
                             padding, payload);
     }
   }
@@ -194,6 +174,16 @@ public class L2tpPacket
     return mPayload.limit();
   }
 
+  // Exact number of bytes serialize() will write
+  int encodedLength() {
+    int length = 6;  // Flags, Tunnel ID, Session ID
+    if (mHasLength) { length += 2; }
+    if (mHasSequence) { length += 4; }
+    if (mPadding != null) { length += 2 + mPadding.limit(); }
+    if (mPayload != null) { length += mPayload.remaining(); }
+    return length;
+  }
+
   int serialize(ByteBuffer dest) {
     short flags = 0;
     if (mIsControl) { flags |= L2TP_HEADER_MASK_TYPE; }
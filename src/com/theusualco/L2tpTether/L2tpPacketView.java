@@ -0,0 +1,152 @@
+package com.theusualco.L2tpTether;
+
+import java.nio.ByteBuffer;
+
+import android.util.Log;
+
+// Reusable read-only view over an L2TP header in a receive buffer.  wrap()
+// only works out where the fields are; every accessor reads straight from
+// the buffer, so looking at a packet allocates nothing.
+public class L2tpPacketView
+{
+  private ByteBuffer mBuf;
+  private int mStart;
+  private int mFlags;
+  private int mLength;
+  private int mIdOffset;
+  private int mSequenceOffset;
+  private int mOffsetSize;
+  private int mPayloadOffset;
+
+  public L2tpPacketView() {
+  }
+
+  // Points the view at the packet between buf's position and limit.
+  // Returns false if the header is truncated or malformed.
+  public boolean wrap(ByteBuffer buf) {
+    mBuf = buf;
+    mStart = buf.position();
+    mLength = buf.remaining();
+
+    if (mLength < 6) {
+      Log.d("L2tpPacketView", "short packet");
+      return false;
+    }
+
+    mFlags = buf.getShort(mStart) & 0xffff;
+    if ((mFlags & L2tpPacket.L2TP_HEADER_MASK_VERSION) != L2tpPacket.L2TP_HEADER_VERSION) {
+      Log.d("L2tpPacketView", "bad l2tp version");
+      return false;
+    }
+
+    int pos = mStart + 2;
+    if (hasLength()) {
+      int length = buf.getShort(pos) & 0xffff;
+      if (length > mLength) {
+        Log.d("L2tpPacketView", "bad length");
+        return false;
+      }
+      mLength = length;
+      pos += 2;
+    }
+    int end = mStart + mLength;
+
+    mIdOffset = pos;
+    pos += 4;
+
+    mSequenceOffset = pos;
+    if (hasSequence()) {
+      pos += 4;
+    }
+
+    mOffsetSize = 0;
+    if (hasOffset()) {
+      if (pos + 2 > end) {
+        Log.d("L2tpPacketView", "short packet");
+        return false;
+      }
+      mOffsetSize = buf.getShort(pos) & 0xffff;
+      pos += 2 + mOffsetSize;
+    }
+
+    if (pos > end) {
+      Log.d("L2tpPacketView", "short packet");
+      return false;
+    }
+    mPayloadOffset = pos;
+
+    return true;
+  }
+
+  ByteBuffer buffer() {
+    return mBuf;
+  }
+
+  int flags() {
+    return mFlags;
+  }
+
+  boolean isControl() {
+    return (mFlags & L2tpPacket.L2TP_HEADER_MASK_TYPE) != 0;
+  }
+
+  boolean isData() {
+    return !isControl();
+  }
+
+  boolean hasLength() {
+    return (mFlags & L2tpPacket.L2TP_HEADER_MASK_LENGTH) != 0;
+  }
+
+  boolean hasSequence() {
+    return (mFlags & L2tpPacket.L2TP_HEADER_MASK_SEQUENCE) != 0;
+  }
+
+  boolean hasOffset() {
+    return (mFlags & L2tpPacket.L2TP_HEADER_MASK_OFFSET) != 0;
+  }
+
+  boolean isPriority() {
+    return (mFlags & L2tpPacket.L2TP_HEADER_MASK_PRIORITY) != 0;
+  }
+
+  // Total packet length, from the header if present
+  int length() {
+    return mLength;
+  }
+
+  short tunnelId() {
+    return mBuf.getShort(mIdOffset);
+  }
+
+  short sessionId() {
+    return mBuf.getShort(mIdOffset + 2);
+  }
+
+  short sequenceNo() {
+    return hasSequence() ? mBuf.getShort(mSequenceOffset) : 0;
+  }
+
+  short expectedSequenceNo() {
+    return hasSequence() ? mBuf.getShort(mSequenceOffset + 2) : 0;
+  }
+
+  int offsetSize() {
+    return mOffsetSize;
+  }
+
+  // Absolute index of the first payload byte in buffer()
+  int payloadOffset() {
+    return mPayloadOffset;
+  }
+
+  int payloadLength() {
+    return mStart + mLength - mPayloadOffset;
+  }
+
+  // Narrows buffer() to the payload and returns it
+  ByteBuffer payload() {
+    mBuf.limit(mStart + mLength).position(mPayloadOffset);
+    return mBuf;
+  }
+}
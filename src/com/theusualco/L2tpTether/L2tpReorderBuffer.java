@@ -0,0 +1,84 @@
+package com.theusualco.L2tpTether;
+
+// Holds messages that arrived ahead of the next expected sequence number
+// until the gap before them fills.  Slots are indexed by Ns modulo the
+// capacity, which must be a power of two at least as large as the window
+// being reordered over.
+//
+// Not thread safe, each buffer belongs to one receive path.
+public class L2tpReorderBuffer<T> {
+  private final Object[] items;
+  private final short[] sequenceNos;
+  private final int mask;
+  private int window;
+  private int count;
+
+  public L2tpReorderBuffer(int capacity, int window) {
+    if (Integer.bitCount(capacity) != 1) {
+      throw new IllegalArgumentException("capacity must be a power of two");
+    }
+    items = new Object[capacity];
+    sequenceNos = new short[capacity];
+    mask = capacity - 1;
+    window(window);
+  }
+
+  // How far ahead of the expected Ns a message may be and still be held
+  void window(int window) {
+    this.window = Math.max(1, Math.min(window, items.length));
+  }
+
+  int window() {
+    return window;
+  }
+
+  int size() {
+    return count;
+  }
+
+  // Stores item if ns is ahead of expected but inside the window.
+  // Returns false for duplicates and anything out of range, which the
+  // caller drops.
+  boolean put(short ns, short expected, T item) {
+    int ahead = L2tpSendWindow.seqDiff(ns, expected);
+    if (ahead <= 0 || ahead >= window) {
+      return false;
+    }
+    int slot = ns & mask;
+    if (items[slot] != null) {
+      return false;
+    }
+    items[slot] = item;
+    sequenceNos[slot] = ns;
+    count++;
+    return true;
+  }
+
+  boolean contains(short ns) {
+    int slot = ns & mask;
+    return items[slot] != null && sequenceNos[slot] == ns;
+  }
+
+  // Removes and returns the item held for ns, or null
+  @SuppressWarnings("unchecked")
+  T poll(short ns) {
+    if (count == 0) {
+      return null;
+    }
+    int slot = ns & mask;
+    Object item = items[slot];
+    if (item == null || sequenceNos[slot] != ns) {
+      return null;
+    }
+    items[slot] = null;
+    count--;
+    return (T)item;
+  }
+
+  void clear() {
+    for (int i = 0; i < items.length; i++) {
+      items[i] = null;
+    }
+    count = 0;
+  }
+}
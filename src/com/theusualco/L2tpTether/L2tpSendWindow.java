@@ -0,0 +1,165 @@
+package com.theusualco.L2tpTether;
+
+// Control messages waiting for an acknowledgement, in a ring indexed by
+// Ns.  Sequence numbers are 16 bit and wrap, so every comparison goes
+// through serial arithmetic (RFC 1982) rather than comparing shorts.
+//
+//   unacked ... sent ... next
+//   [ sent, not acked ][ queued, outside window ]
+//
+// How much may be in flight is the smaller of the peer's Receive Window
+// Size and a congestion window run as in RFC 2661 Appendix A: it starts
+// at one message and grows by one per ack up to the slow start
+// threshold, then by one per window's worth of acks.  A retransmit
+// timeout halves the threshold and starts again from one.
+//
+// Not thread safe, each L2tpTunnel only touches its own on the event loop
+// thread.
+public class L2tpSendWindow {
+  // Messages queued beyond this are refused, far more than the control
+  // channel ever has in flight
+  static final int CAPACITY = 256;
+
+  private final L2tpControlPacket[] slots = new L2tpControlPacket[CAPACITY];
+  private final int mask = CAPACITY - 1;
+  private short unacked;  // Oldest Ns not acknowledged
+  private short sent;  // Oldest Ns not yet transmitted
+  private short highestSent;  // One past the newest Ns ever transmitted
+  private short next;  // Ns for the next message queued
+  private int windowSize;  // The peer's
+  private int cwnd;
+  private int ssthresh;
+  private int ackCount;  // Acks towards the next increase past ssthresh
+
+  public L2tpSendWindow(int windowSize) {
+    windowSize(windowSize);
+  }
+
+  // a - b as a signed distance, negative when a comes before b
+  static int seqDiff(short a, short b) {
+    return (short)(a - b);
+  }
+
+  static boolean seqBefore(short a, short b) {
+    return seqDiff(a, b) < 0;
+  }
+
+  // Also restarts slow start, with the threshold at the peer's window
+  void windowSize(int windowSize) {
+    this.windowSize = Math.max(1, Math.min(windowSize, CAPACITY));
+    cwnd = 1;
+    ssthresh = this.windowSize;
+    ackCount = 0;
+  }
+
+  int windowSize() {
+    return windowSize;
+  }
+
+  int congestionWindow() {
+    return cwnd;
+  }
+
+  int slowStartThreshold() {
+    return ssthresh;
+  }
+
+  // Messages queued, sent or not
+  int size() {
+    return seqDiff(next, unacked);
+  }
+
+  boolean isEmpty() {
+    return unacked == next;
+  }
+
+  int outstanding() {
+    return seqDiff(sent, unacked);
+  }
+
+  short nextSequenceNo() {
+    return next;
+  }
+
+  // Assigns the packet its Ns and queues it.  Returns false if the ring
+  // is full.
+  boolean add(L2tpControlPacket packet) {
+    if (size() == CAPACITY) {
+      return false;
+    }
+    packet.sequenceNo(next);
+    slots[next & mask] = packet;
+    next++;
+    return true;
+  }
+
+  // The next queued message the window has room for, or null.  The
+  // caller transmits it.
+  L2tpControlPacket nextToSend() {
+    if (sent == next || outstanding() >= Math.min(cwnd, windowSize)) {
+      return null;
+    }
+    L2tpControlPacket packet = slots[sent++ & mask];
+    if (seqBefore(highestSent, sent)) {
+      highestSent = sent;
+    }
+    return packet;
+  }
+
+  // The i-th message in flight, for retransmission
+  L2tpControlPacket outstanding(int i) {
+    return slots[(unacked + i) & mask];
+  }
+
+  // Releases every message before nr and returns the newest one
+  // released, or null if nr acknowledges nothing new.  An nr outside
+  // what has been sent is ignored.
+  L2tpControlPacket ack(short nr) {
+    int count = seqDiff(nr, unacked);
+    if (count <= 0 || count > seqDiff(highestSent, unacked)) {
+      return null;
+    }
+
+    L2tpControlPacket last = null;
+    for (int i = 0; i < count; i++) {
+      int slot = unacked++ & mask;
+      last = slots[slot];
+      slots[slot] = null;
+      openWindow();
+    }
+    // After a timeout the peer may ack messages not yet sent again
+    if (seqBefore(sent, unacked)) {
+      sent = unacked;
+    }
+    return last;
+  }
+
+  private void openWindow() {
+    if (cwnd < ssthresh) {
+      cwnd++;
+    } else if (++ackCount >= cwnd) {
+      cwnd++;
+      ackCount = 0;
+    }
+    if (cwnd > windowSize) {
+      cwnd = windowSize;
+    }
+  }
+
+  // The oldest message went unacknowledged for a whole timeout.  Shrinks
+  // the congestion window and rewinds so everything in flight is sent
+  // again as the window reopens.
+  void timeout() {
+    ssthresh = Math.max(cwnd / 2, 1);
+    cwnd = 1;
+    ackCount = 0;
+    sent = unacked;
+  }
+
+  void clear() {
+    for (int i = 0; i < CAPACITY; i++) {
+      slots[i] = null;
+    }
+    unacked = sent = highestSent = next = 0;
+  }
+}
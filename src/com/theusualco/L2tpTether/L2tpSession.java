@@ -0,0 +1,618 @@
+package com.theusualco.L2tpTether;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+// One incoming call carried over an L2tpTunnel, made by
+// L2tpTunnel.openSession().  Data for it arrives with its local id in the
+// header and goes to the handler as SESSION_DATA with the tunnel and
+// session ids in arg1 and arg2.
+//
+// Like the tunnel, its state belongs to the client's event loop.  Only
+// sendData() runs on the caller's thread, so frames go out without a hop
+// through the loop.
+public class L2tpSession {
+  // Sequenced data packets arriving ahead of a gap are held this long at
+  // most for the missing one to turn up
+  private static final int DATA_REORDER_WINDOW = 16;
+  private static final int DEFAULT_DATA_HOLD_TIME = 100;
+
+  // Batches the handler has given back, kept for reuse.  A handler that
+  // keeps up needs one or two.
+  private static final int FREE_BATCHES = 4;
+
+  private static final L2tpControlTemplate icrqTemplate;
+  private static final L2tpControlTemplate iccnTemplate;
+  private static final L2tpControlTemplate cdnTemplate;
+  private static final L2tpControlTemplate cdnErrorTemplate;
+
+  static {
+    L2tpControlPacket icrq = new L2tpControlPacket(L2tpControlPacket.L2TP_CTRL_TYPE_ICRQ);
+    icrq.addAvp(new L2tpAvp(true, L2tpAvp.L2TP_AVP_ASSIGNED_SESSION_ID, (short)0));
+    icrq.addAvp(new L2tpAvp(true, L2tpAvp.L2TP_AVP_CALL_SERIAL_NUMBER, (int)0));
+    icrqTemplate = new L2tpControlTemplate(icrq);
+
+    L2tpControlPacket iccn = new L2tpControlPacket(L2tpControlPacket.L2TP_CTRL_TYPE_ICCN);
+    iccn.addAvp(new L2tpAvp(true, L2tpAvp.L2TP_AVP_CONNECT_SPEED, (int)0));
+    iccn.addAvp(new L2tpAvp(true, L2tpAvp.L2TP_AVP_FRAMING_TYPE, (int)0));
+    iccnTemplate = new L2tpControlTemplate(iccn);
+
+    L2tpControlPacket cdn = new L2tpControlPacket(L2tpControlPacket.L2TP_CTRL_TYPE_CDN);
+    cdn.addAvp(new L2tpAvp(true, L2tpAvp.L2TP_AVP_ASSIGNED_SESSION_ID, (short)0));
+    cdn.addAvp(new L2tpAvp(true, L2tpAvp.L2TP_AVP_RESULT_CODE, (short)3));
+    cdnTemplate = new L2tpControlTemplate(cdn);
+
+    // Result Code 2 (Disconnected for the reason in the error code)
+    L2tpControlPacket cdnError = new L2tpControlPacket(L2tpControlPacket.L2TP_CTRL_TYPE_CDN);
+    cdnError.addAvp(new L2tpAvp(true, L2tpAvp.L2TP_AVP_ASSIGNED_SESSION_ID, (short)0));
+    cdnError.addAvp(new L2tpAvp(true, L2tpAvp.L2TP_AVP_RESULT_CODE, (int)(2 << 16)));
+    cdnErrorTemplate = new L2tpControlTemplate(cdnError);
+  }
+
+  private final L2tpTunnel tunnel;
+  private final L2tpClient client;
+  private final short localId;
+  private final BufferPool bufferPool;
+  private final TimerWheel timerWheel;
+  private volatile int sessionState;
+  // Waiting for the attempt under way to succeed or fail
+  private ArrayList<L2tpCompletion> startWaiters = new ArrayList<L2tpCompletion>();
+  private short peerSessionId;
+  private boolean sequencingRequired;
+  private volatile L2tpDataHeader dataHeader;
+  private short dataSequenceNo;  // Advanced by sendData() on the caller's thread
+  private L2tpReorderBuffer<ByteBuffer> dataReorder =
+      new L2tpReorderBuffer<ByteBuffer>(DATA_REORDER_WINDOW, DATA_REORDER_WINDOW);
+  private boolean dataSequenced;
+  private short expectedDataSequenceNo;
+  private TimerWheel.Timeout dataHoldTimeout;
+  // When each held packet arrived, by the same slot as dataReorder
+  private long[] dataArrival = new long[DATA_REORDER_WINDOW];
+  private int dataHoldTime = DEFAULT_DATA_HOLD_TIME;
+  private int dataReorderedCount;
+  private int dataLateCount;
+  private int dataDroppedCount;
+  private int dataLostCount;
+  private L2tpDataBatch batch;  // Payloads waiting for the handler
+  private final L2tpDataBatch[] freeBatches = new L2tpDataBatch[FREE_BATCHES];
+  private int freeBatchCount;  // Guarded by freeBatches
+
+  L2tpSession(L2tpTunnel tunnel, short localId) {
+    this.tunnel = tunnel;
+    this.client = tunnel.client();
+    this.localId = localId;
+    this.bufferPool = client.bufferPool();
+    this.timerWheel = client.timerWheel();
+
+    init();
+  }
+
+  private void init() {
+    sessionState = L2tpClient.SESSION_STATE_IDLE;
+    peerSessionId = 0;
+    dataHeader = null;
+    resetDataSequencing();
+  }
+
+  public L2tpTunnel tunnel() {
+    return tunnel;
+  }
+
+  public short localId() {
+    return localId;
+  }
+
+  public short peerId() {
+    return peerSessionId;
+  }
+
+  public boolean isEstablished() {
+    return sessionState == L2tpClient.SESSION_STATE_ESTABLISHED;
+  }
+
+  // Longest a sequenced data packet waits for an earlier one that went
+  // missing; 0 delivers everything in arrival order
+  public void dataHoldTime(final int millis) {
+    client.post(new Runnable() {
+      public void run() {
+        dataHoldTime = millis;
+      }
+    });
+  }
+
+  // Sequenced data receive counters: packets delivered after being held,
+  // packets that arrived after their slot was delivered or skipped,
+  // duplicates dropped, and sequence numbers given up on.  They may lag
+  // when read off the loop.
+  public int dataReorderedCount() {
+    return dataReorderedCount;
+  }
+
+  public int dataLateCount() {
+    return dataLateCount;
+  }
+
+  public int dataDroppedCount() {
+    return dataDroppedCount;
+  }
+
+  public int dataLostCount() {
+    return dataLostCount;
+  }
+
+  // Brings the tunnel up first if it isn't already, then blocks until the
+  // session is up or the attempt fails
+  public boolean start() {
+    return startAsync(0).await(0);
+  }
+
+  // Brings the session, and the tunnel if need be, up without blocking.
+  // The completion fails if the session isn't up within timeoutMillis, 0
+  // meaning no limit.
+  public L2tpCompletion startAsync(final long timeoutMillis) {
+    final L2tpCompletion completion = new L2tpCompletion();
+    client.post(new Runnable() {
+      public void run() {
+        doStart(completion, timeoutMillis);
+      }
+    });
+    return completion;
+  }
+
+  void doStart(final L2tpCompletion completion, long timeoutMillis) {
+    if (sessionState == L2tpClient.SESSION_STATE_ESTABLISHED) {
+      completion.complete(true);
+      return;
+    }
+
+    startWaiters.add(completion);
+    if (timeoutMillis > 0) {
+      completion.deadline = timerWheel.schedule(new Runnable() {
+        public void run() {
+          startTimedOut(completion);
+        }
+      }, timeoutMillis);
+    }
+
+    if (sessionState != L2tpClient.SESSION_STATE_IDLE) {
+      return;
+    }
+    if (tunnel.isEstablished()) {
+      sessionState = L2tpClient.SESSION_STATE_WAIT_REPLY;
+      sendICRQ();
+      return;
+    }
+
+    // The call is placed once the tunnel comes up
+    sessionState = L2tpClient.SESSION_STATE_WAIT_TUNNEL;
+    L2tpCompletion tunnelUp = new L2tpCompletion();
+    tunnelUp.listener(new L2tpCompletion.Listener() {
+      public void onComplete(L2tpCompletion tunnelUp) {
+        tunnelStarted(tunnelUp.isSuccess());
+      }
+    });
+    tunnel.doStart(tunnelUp, timeoutMillis);
+  }
+
+  private void tunnelStarted(boolean up) {
+    if (sessionState != L2tpClient.SESSION_STATE_WAIT_TUNNEL) {
+      return;
+    }
+    if (up) {
+      sessionState = L2tpClient.SESSION_STATE_WAIT_REPLY;
+      sendICRQ();
+    } else {
+      init();
+      finishStart(false);
+    }
+  }
+
+  private void startTimedOut(L2tpCompletion completion) {
+    completion.deadline = null;
+    if (!startWaiters.remove(completion)) {
+      return;
+    }
+    completion.complete(false);
+
+    if (startWaiters.isEmpty() && sessionState != L2tpClient.SESSION_STATE_ESTABLISHED) {
+      Log.d("L2tpSession", "start timed out, giving up");
+      doStop();
+    }
+  }
+
+  private void finishStart(boolean success) {
+    if (startWaiters.isEmpty()) {
+      return;
+    }
+    // Listeners may start again, which adds to a fresh list
+    ArrayList<L2tpCompletion> waiters = startWaiters;
+    startWaiters = new ArrayList<L2tpCompletion>();
+    for (L2tpCompletion completion : waiters) {
+      timerWheel.cancel(completion.deadline);
+      completion.deadline = null;
+      completion.complete(success);
+    }
+  }
+
+  public void stop() {
+    client.post(new Runnable() {
+      public void run() {
+        doStop();
+      }
+    });
+  }
+
+  void doStop() {
+    if (sessionState == L2tpClient.SESSION_STATE_IDLE)
+      return;
+
+    // Nothing has been said to the peer before the tunnel is up
+    if (sessionState != L2tpClient.SESSION_STATE_WAIT_TUNNEL) {
+      sendCDN();
+    }
+
+    init();
+    finishStart(false);
+  }
+
+  public void sendPacket(final L2tpPacket packet) {
+    client.post(new Runnable() {
+      public void run() {
+        queuePacket(packet);
+      }
+    });
+  }
+
+  void queuePacket(L2tpPacket packet) {
+    packet.sessionId(peerSessionId);
+    if (!packet.isControl()) {
+      packet.sequence(sequencingRequired);
+    }
+    tunnel.queuePacket(packet);
+  }
+
+  // Sends the PPP frame held in buf between DATA_HEADER_SPACE and buf's
+  // position.  The cached data header is written into the space in front
+  // of the frame so the datagram goes out without copying the payload.
+  // buf is left for the caller to reuse.
+  public void sendData(ByteBuffer buf) {
+    L2tpDataHeader header = dataHeader;
+    if (header == null) {
+      Log.d("L2tpSession", "no session, dropping frame");
+      return;
+    }
+
+    int end = buf.position();
+    int start = L2tpClient.DATA_HEADER_SPACE - header.length();
+    buf.position(start);
+    header.write(buf, dataSequenceNo, end - L2tpClient.DATA_HEADER_SPACE);
+    if (header.hasSequence()) {
+      dataSequenceNo++;
+    }
+    buf.limit(end).position(start);
+
+    tunnel.write(buf);
+  }
+
+  void sendICRQ() {
+    L2tpControlPacket icrq = icrqTemplate.newPacket();
+    icrq.patchShort(L2tpAvp.L2TP_AVP_ASSIGNED_SESSION_ID, localId);
+    icrq.patchInt(L2tpAvp.L2TP_AVP_CALL_SERIAL_NUMBER, tunnel.nextCallSerial());
+
+    queuePacket(icrq);
+  }
+
+  void sendICCN() {
+    queuePacket(iccnTemplate.newPacket());
+  }
+
+  void sendCDN() {
+    L2tpControlPacket cdn = cdnTemplate.newPacket();
+    cdn.patchShort(L2tpAvp.L2TP_AVP_ASSIGNED_SESSION_ID, localId);
+
+    queuePacket(cdn);
+  }
+
+  void sendCDN(int errorCode) {
+    L2tpControlPacket cdn = cdnErrorTemplate.newPacket();
+    cdn.patchShort(L2tpAvp.L2TP_AVP_ASSIGNED_SESSION_ID, localId);
+    cdn.patchInt(L2tpAvp.L2TP_AVP_RESULT_CODE, (2 << 16) | errorCode);
+
+    queuePacket(cdn);
+  }
+
+  // A data packet whose header carried this session's id.  Takes
+  // ownership of the buffer behind view.
+  void receiveData(L2tpPacketView view) {
+    if (!view.hasSequence()) {
+      // Data fast path: hand over the payload in place, the handler
+      // releases the buffer
+      deliver(view.payload());
+    } else {
+      receiveSequencedData(view.sequenceNo(), view.payload());
+    }
+  }
+
+  private void deliver(ByteBuffer payload) {
+    if (!client.batchDelivery()) {
+      if (!client.sendMessage(L2tpClient.SESSION_DATA, tunnel.localId(), localId, payload)) {
+        bufferPool.release(payload);
+      }
+      return;
+    }
+
+    if (batch == null) {
+      batch = acquireBatch();
+      client.batchPending(this);
+    }
+    batch.add(payload);
+    if (batch.isFull()) {
+      flushBatch();
+    }
+  }
+
+  private L2tpDataBatch acquireBatch() {
+    synchronized (freeBatches) {
+      if (freeBatchCount > 0) {
+        L2tpDataBatch batch = freeBatches[--freeBatchCount];
+        freeBatches[freeBatchCount] = null;
+        return batch;
+      }
+    }
+    client.batchAllocated();
+    return new L2tpDataBatch(this, L2tpClient.RECEIVE_BATCH);
+  }
+
+  // Called by L2tpClient.releaseBatch() on the handler's thread once the
+  // payloads are back in the pool.  Batches beyond FREE_BATCHES are left
+  // to the garbage collector.
+  void recycleBatch(L2tpDataBatch batch) {
+    batch.clear();
+    synchronized (freeBatches) {
+      if (freeBatchCount < freeBatches.length) {
+        freeBatches[freeBatchCount++] = batch;
+      }
+    }
+  }
+
+  // Hands the data gathered since the last flush to the handler
+  void flushBatch() {
+    L2tpDataBatch batch = this.batch;
+    if (batch == null) {
+      return;
+    }
+    this.batch = null;
+    if (!client.sendMessage(L2tpClient.SESSION_DATA_BATCH, tunnel.localId(), localId, batch)) {
+      client.releaseBatch(batch);
+    }
+  }
+
+  // Puts sequenced data packets back in order.  Packets ahead of a gap
+  // are held for up to dataHoldTime from their own arrival, then every
+  // gap in front of them is skipped.  Packets
+  // behind what has already been delivered are dropped.
+  private void receiveSequencedData(short ns, ByteBuffer payload) {
+    if (!dataSequenced) {
+      dataSequenced = true;
+      expectedDataSequenceNo = ns;
+    }
+
+    int ahead = L2tpSendWindow.seqDiff(ns, expectedDataSequenceNo);
+    if (ahead == 0 || dataHoldTime == 0 && ahead > 0) {
+      dataLostCount += ahead;
+      expectedDataSequenceNo = ns;
+      deliverData(payload);
+      deliverHeldData();
+    } else if (ahead < 0) {
+      dataLateCount++;
+      bufferPool.release(payload);
+    } else if (ahead >= dataReorder.window()) {
+      // Too far ahead to wait for, give up on everything before it
+      skipData(ns);
+      deliverData(payload);
+      deliverHeldData();
+    } else if (dataReorder.put(ns, expectedDataSequenceNo, payload)) {
+      dataArrival[ns & (DATA_REORDER_WINDOW - 1)] = SystemClock.elapsedRealtime();
+      if (dataHoldTimeout == null) {
+        dataHoldTimeout = timerWheel.schedule(dataHoldTask, dataHoldTime);
+      }
+    } else {
+      dataDroppedCount++;
+      bufferPool.release(payload);
+    }
+  }
+
+  private void deliverData(ByteBuffer payload) {
+    expectedDataSequenceNo++;
+    deliver(payload);
+  }
+
+  private void deliverHeldData() {
+    ByteBuffer payload;
+    boolean released = false;
+    while ((payload = dataReorder.poll(expectedDataSequenceNo)) != null) {
+      dataReorderedCount++;
+      deliverData(payload);
+      released = true;
+    }
+    if (dataReorder.size() == 0) {
+      timerWheel.cancel(dataHoldTimeout);
+      dataHoldTimeout = null;
+    } else if (released || dataHoldTimeout == null) {
+      scheduleDataHold(SystemClock.elapsedRealtime());
+    }
+  }
+
+  // Sets the hold timer for when the longest held packet has waited
+  // dataHoldTime
+  private void scheduleDataHold(long now) {
+    timerWheel.cancel(dataHoldTimeout);
+    dataHoldTimeout = null;
+    if (dataReorder.size() == 0) {
+      return;
+    }
+
+    long oldest = now;
+    for (int i = 1; i < DATA_REORDER_WINDOW; i++) {
+      short ns = (short)(expectedDataSequenceNo + i);
+      if (dataReorder.contains(ns)) {
+        oldest = Math.min(oldest, dataArrival[ns & (DATA_REORDER_WINDOW - 1)]);
+      }
+    }
+    dataHoldTimeout = timerWheel.schedule(dataHoldTask, oldest + dataHoldTime - now);
+  }
+
+  // Delivers what is held before ns and moves the expected Ns up to it
+  private void skipData(short ns) {
+    while (expectedDataSequenceNo != ns && dataReorder.size() > 0) {
+      ByteBuffer payload = dataReorder.poll(expectedDataSequenceNo);
+      if (payload != null) {
+        dataReorderedCount++;
+        deliverData(payload);
+      } else {
+        dataLostCount++;
+        expectedDataSequenceNo++;
+      }
+    }
+    dataLostCount += L2tpSendWindow.seqDiff(ns, expectedDataSequenceNo);
+    expectedDataSequenceNo = ns;
+  }
+
+  private Runnable dataHoldTask = new Runnable() {
+    public void run() {
+      dataHoldTimeout = null;
+      dataHoldExpired();
+    }
+  };
+
+  // Gives up on the gaps in front of the furthest held packet whose time
+  // is up.  Packets held behind it are delivered on the way, and the timer
+  // is set again for whatever is still waiting.
+  private void dataHoldExpired() {
+    long now = SystemClock.elapsedRealtime();
+    short last = expectedDataSequenceNo;
+    boolean expired = false;
+    for (int i = 1; i < DATA_REORDER_WINDOW; i++) {
+      short ns = (short)(expectedDataSequenceNo + i);
+      if (dataReorder.contains(ns) &&
+          now - dataArrival[ns & (DATA_REORDER_WINDOW - 1)] >= dataHoldTime) {
+        last = ns;
+        expired = true;
+      }
+    }
+
+    if (!expired) {
+      // The wheel can run a tick early
+      scheduleDataHold(now);
+      return;
+    }
+    skipData(last);
+    deliverHeldData();
+  }
+
+  private void resetDataSequencing() {
+    timerWheel.cancel(dataHoldTimeout);
+    dataHoldTimeout = null;
+    for (int i = 0; i < DATA_REORDER_WINDOW && dataReorder.size() > 0; i++) {
+      ByteBuffer payload = dataReorder.poll((short)(expectedDataSequenceNo + i));
+      if (payload != null) {
+        bufferPool.release(payload);
+      }
+    }
+    dataReorder.clear();
+    dataSequenced = false;
+    expectedDataSequenceNo = 0;
+  }
+
+  void handleControlPacket(L2tpControlPacket packet, L2tpAvpFields fields)
+      throws AvpFormatInvalidException {
+    switch (packet.messageType()) {
+      case L2tpControlPacket.L2TP_CTRL_TYPE_ICRP:
+        handleICRP(fields);
+        break;
+      case L2tpControlPacket.L2TP_CTRL_TYPE_CDN:
+        handleCDN(packet);
+        break;
+      case L2tpControlPacket.L2TP_CTRL_TYPE_SLI:
+        handleSLI(fields);
+        break;
+    }
+  }
+
+  // The peer sent this session something the registry refused
+  void reject(int errorCode) {
+    if (sessionState == L2tpClient.SESSION_STATE_IDLE)
+      return;
+
+    sendCDN(errorCode);
+    init();
+
+    client.sendMessage(L2tpClient.SESSION_DOWN, this);
+    finishStart(false);
+  }
+
+  // The tunnel went away underneath the session
+  void down() {
+    boolean wasUp = sessionState == L2tpClient.SESSION_STATE_ESTABLISHED;
+    init();
+
+    if (wasUp) {
+      client.sendMessage(L2tpClient.SESSION_DOWN, this);
+    }
+    finishStart(false);
+  }
+
+  void handleICRP(L2tpAvpFields fields) throws AvpFormatInvalidException {
+    Log.d("L2tpSession", "handleICRP");
+
+    if (sessionState != L2tpClient.SESSION_STATE_WAIT_REPLY) {
+      Log.d("L2tpSession", "not in wait-reply");
+      return;
+    }
+
+    if ((peerSessionId = (short)fields.u16(L2tpAvp.L2TP_AVP_ASSIGNED_SESSION_ID)) == 0) {
+      Log.d("L2tpSession", "bad Session-Id");
+      throw new AvpFormatInvalidException();
+    }
+
+    dataSequenceNo = 0;
+    dataHeader = new L2tpDataHeader(false, sequencingRequired, tunnel.peerId(), peerSessionId);
+    sessionState = L2tpClient.SESSION_STATE_ESTABLISHED;
+
+    sendICCN();
+    client.sendMessage(L2tpClient.SESSION_UP, this);
+    finishStart(true);
+  }
+
+  void handleCDN(L2tpControlPacket packet) {
+    Log.d("L2tpSession", "handleCDN");
+
+    init();
+
+    client.sendMessage(L2tpClient.SESSION_DOWN, this);
+    finishStart(false);
+  }
+
+  void handleSLI(L2tpAvpFields fields) throws AvpFormatInvalidException {
+    Log.d("L2tpSession", "handleSLI");
+
+    if (sessionState != L2tpClient.SESSION_STATE_ESTABLISHED) {
+      Log.d("L2tpSession", "not established");
+      return;
+    }
+
+    // Reserved(2), Send ACCM(4), Receive ACCM(4), length checked by the
+    // registry
+    L2tpAvp avp = fields.avp(L2tpAvp.L2TP_AVP_ACCM);
+    if (avp != null) {
+      int sendAccm = avp.value.getInt(2);
+      int receiveAccm = avp.value.getInt(6);
+      Log.d("L2tpSession", "ACCM send=" + Integer.toHexString(sendAccm) +
+            " receive=" + Integer.toHexString(receiveAccm));
+      client.sendMessage(L2tpClient.SESSION_ACCM, sendAccm, receiveAccm, this);
+    }
+  }
+}
@@ -9,10 +9,8 @@ import java.lang.NullPointerException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
-import java.nio.BufferUnderflowException;
 import java.util.UUID;
 
 import android.app.Activity;
@@ -38,27 +36,74 @@ public class L2tpTetherActivity extends Activity implements Runnable
 
   private static final String L2TP_HOST = "lns.theusualco.com";
   private static final int L2TP_PORT = 1701;
+  private static final int TUNNEL_TIMEOUT = 30000;
+  private static final int SESSION_TIMEOUT = 30000;
 
   private InetAddress mL2tpAddr;
   private L2tpClient mL2tpClient;
+  private L2tpTunnel mTunnel;
+  private volatile L2tpSession mSession;
+  private Thread mTunnelThread;
   private BluetoothAdapter mAdapter;
   private BluetoothServerSocket mServer;
   private InputStream mInStream;
   private OutputStream mOutStream;
+  private HdlcFramer mHdlc;
+  // Room for a few worst case frames, a batch of typical ones goes out in
+  // one write
+  private ByteBuffer mEncodeBuffer = ByteBuffer.allocate(HdlcFramer.maxEncodedLength(1500) * 8);
 
   private Handler mHandler = new Handler() {
     public void handleMessage(Message msg) {
       Log.d("L2tpTetherActivity", "handleMessage");
       if (msg.what == L2tpClient.SESSION_DATA) {
-        try {
-          mOutStream.write(((ByteBuffer)msg.obj).array());
-        } catch (IOException e) {
-          Log.d("L2tpTetherActivity", "write failed: " + e.getMessage());
+        ByteBuffer payload = (ByteBuffer)msg.obj;
+        encodeFrame(payload);
+        writeEncoded();
+        mL2tpClient.releaseBuffer(payload);
+      } else if (msg.what == L2tpClient.SESSION_DATA_BATCH) {
+        L2tpDataBatch batch = (L2tpDataBatch)msg.obj;
+        for (int i = 0; i < batch.size(); i++) {
+          encodeFrame(batch.get(i));
+        }
+        writeEncoded();
+        mL2tpClient.releaseBatch(batch);
+      } else if (msg.what == L2tpClient.SESSION_ACCM) {
+        if (mHdlc != null) {
+          mHdlc.sendAccm(msg.arg1);
+          mHdlc.receiveAccm(msg.arg2);
         }
       }
     }
   };
 
+  // Appends an HDLC frame to mEncodeBuffer, writing out what is already
+  // there first if it won't fit
+  void encodeFrame(ByteBuffer payload) {
+    if (mHdlc == null) {
+      return;
+    }
+    int length = HdlcFramer.maxEncodedLength(payload.remaining());
+    if (mEncodeBuffer.remaining() < length) {
+      writeEncoded();
+      if (mEncodeBuffer.capacity() < length) {
+        mEncodeBuffer = ByteBuffer.allocate(length);
+      }
+    }
+    mHdlc.encodeFrame(payload, mEncodeBuffer);
+  }
+
+  void writeEncoded() {
+    if (mOutStream != null && mEncodeBuffer.position() > 0) {
+      try {
+        mOutStream.write(mEncodeBuffer.array(), 0, mEncodeBuffer.position());
+      } catch (IOException e) {
+        Log.d("L2tpTetherActivity", "write failed: " + e.getMessage());
+      }
+    }
+    mEncodeBuffer.clear();
+  }
+
   /** Called when the activity is first created. */
   @Override
   public void onCreate(Bundle savedInstanceState)
@@ -66,7 +111,14 @@ public class L2tpTetherActivity extends Activity implements Runnable
     super.onCreate(savedInstanceState);
     setContentView(R.layout.main);
 
-    makeTunnel();
+    // The tunnel comes up in the background while Bluetooth is set up,
+    // resolving the LNS blocks
+    mTunnelThread = new Thread(new Runnable() {
+      public void run() {
+        makeTunnel();
+      }
+    });
+    mTunnelThread.start();
     makeDiscoverable();
     makeListenSocket();
   }
@@ -88,7 +140,7 @@ public class L2tpTetherActivity extends Activity implements Runnable
       Log.d("L2tpTetherActivity", "IOException: " + e.getMessage());
     }
 
-    mL2tpClient.stopSession();
+    endSession();
   }
 
   boolean makeTunnel() {
@@ -100,18 +152,50 @@ public class L2tpTetherActivity extends Activity implements Runnable
     }
 
     try {
-      mL2tpClient = new L2tpClient(mL2tpAddr, L2TP_PORT);
-    } catch (SocketException e) {
-      Log.d("L2tpTetherActivity", "creating client failed");
+      mL2tpClient = new L2tpClient();
+      mL2tpClient.handler(mHandler);
+      mL2tpClient.batchDelivery(true);
+      mTunnel = mL2tpClient.openTunnel(mL2tpAddr, L2TP_PORT);
+    } catch (IOException e) {
+      Log.d("L2tpTetherActivity", "creating tunnel failed");
       return false;
     }
 
-    mL2tpClient.handler(mHandler);
+    mTunnel.startAsync(TUNNEL_TIMEOUT).listener(new L2tpCompletion.Listener() {
+      public void onComplete(L2tpCompletion completion) {
+        Log.d("L2tpTetherActivity", "tunnel up: " + completion.isSuccess());
+      }
+    });
+
+    return true;
+  }
 
-    if (!mL2tpClient.startTunnel())
+  // Waits for makeTunnel() and then for a new session for this client,
+  // which joins the tunnel attempt if that is still under way
+  boolean startSession() {
+    try {
+      mTunnelThread.join();
+    } catch (InterruptedException e) {
+      return false;
+    }
+    if (mTunnel == null) {
       return false;
+    }
 
-    return true;
+    mSession = mTunnel.openSession();
+    if (mSession == null) {
+      return false;
+    }
+    return mSession.startAsync(SESSION_TIMEOUT).await(0);
+  }
+
+  // Hangs up the call made for the client that has gone
+  void endSession() {
+    L2tpSession session = mSession;
+    if (session != null) {
+      mSession = null;
+      session.tunnel().closeSession(session);
+    }
   }
 
   void makeDiscoverable() {
@@ -160,12 +244,22 @@ public class L2tpTetherActivity extends Activity implements Runnable
     }
   }
 
+  // Returns once the client has gone, whichever way it went, so the next
+  // one can be accepted
   void handleClientConnection(BluetoothSocket socket) throws IOException {
     Log.d("L2tpTetherActivity", "handleClientConnection");
     mInStream = socket.getInputStream();
     mOutStream = socket.getOutputStream();
+    mHdlc = new HdlcFramer();
 
-    handleCommandStream();
+    try {
+      handleCommandStream();
+    } catch (IOException e) {
+      Log.d("L2tpTetherActivity", "connection lost: " + e.getMessage());
+    } finally {
+      endSession();
+      socket.close();
+    }
   }
 
   void handleCommandStream() throws IOException {
@@ -175,6 +269,10 @@ public class L2tpTetherActivity extends Activity implements Runnable
     while (true) {
       String response = "ERROR\r\n";
       String line = bufferedStream.readLine();
+      if (line == null) {
+        Log.d("L2tpTetherActivity", "client disconnected");
+        return;
+      }
       Log.d("L2tpTetherActivity", line);
 
       if ("AT".equals(line) ||
@@ -192,8 +290,14 @@ public class L2tpTetherActivity extends Activity implements Runnable
       mOutStream.write(response.getBytes());
 
       if ("CLIENTSERVER\r\n".equals(response)) {
-        mL2tpClient.startSession();
+        // Without a session there is nowhere to send the frames, so the
+        // client is dropped
+        if (!startSession()) {
+          Log.d("L2tpTetherActivity", "session setup failed");
+          return;
+        }
         handleDataStream();
+        return;
       }
     }
   }
@@ -201,26 +305,58 @@ public class L2tpTetherActivity extends Activity implements Runnable
   void handleDataStream() throws IOException {
     Log.d("L2tpTetherActivity", "handleDataStream");
 
-    final HdlcFramer hdlc = new HdlcFramer();
-    byte[] buf = new byte[1500];
-    while (true) {
-      int len = mInStream.read(buf);
-      Log.d("L2tpTetherActivity", "read=" + len);
-      hdlc.put(buf);
+    // Frames are pulled out and sent on their own thread while this one
+    // keeps reading from RFCOMM
+    final HdlcFramer hdlc = mHdlc;
+    final L2tpSession session = mSession;
+    Thread sender = new Thread(new Runnable() {
+      public void run() {
+        sendFrames(hdlc, session);
+      }
+    });
+    sender.start();
 
+    byte[] buf = new byte[1500];
+    try {
       while (true) {
-        try {
-          mL2tpClient.sendPacket(new L2tpPacket() {
-            @Override
-            void serializePayload(ByteBuffer dest) {
-              hdlc.getFrame(dest);
-            }
-          });
-        } catch (BufferUnderflowException e) {
-          Log.d("L2tpTetherActivity", "BufferUnderflowException: " + e.getMessage());
+        int len = mInStream.read(buf);
+        Log.d("L2tpTetherActivity", "read=" + len);
+        if (len < 0) {
+          Log.d("L2tpTetherActivity", "client disconnected");
+          return;
+        }
+
+        int offset = hdlc.put(buf, 0, len);
+        while (offset < len) {
+          if (!hdlc.awaitSpace()) {
+            return;
+          }
+          offset += hdlc.put(buf, offset, len - offset);
+        }
+      }
+    } finally {
+      hdlc.close();
+    }
+  }
+
+  void sendFrames(HdlcFramer hdlc, L2tpSession session) {
+    Log.d("L2tpTetherActivity", "sendFrames");
+
+    // Frames are de-framed straight into the datagram buffer, behind the
+    // space L2tpClient needs for the header
+    ByteBuffer packet = ByteBuffer.allocateDirect(4096);
+    packet.position(L2tpClient.DATA_HEADER_SPACE);
+    while (true) {
+      if (!hdlc.getFrame(packet)) {
+        if (!hdlc.awaitData()) {
           break;
         }
+        continue;
       }
+
+      session.sendData(packet);
+      packet.clear();
+      packet.position(L2tpClient.DATA_HEADER_SPACE);
     }
   }
 }
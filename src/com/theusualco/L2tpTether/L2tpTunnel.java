@@ -0,0 +1,864 @@
+package com.theusualco.L2tpTether;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+// One control connection to an LNS and the sessions carried over it.
+// Tunnels are made by L2tpClient.openTunnel(), whose event loop reads the
+// socket, runs the timers and owns all of the state here.  The public
+// methods post to the loop; everything else runs on it.
+public class L2tpTunnel {
+  // Receive Window Size we advertise; control messages up to this far
+  // ahead of the next expected Ns are held until the gap fills
+  private static final short LOCAL_RECEIVE_WINDOW = 8;
+
+  // Control message retransmission (RFC 2661 section 5.8).  The timeout
+  // adapts to the measured round trip time and doubles on each retry.
+  private static final int RTO_INITIAL = 1000;
+  private static final int RTO_MIN = 200;
+  private static final int RTO_MAX = 8000;
+  private static final int MAX_RETRANSMITS = 5;
+
+  // How long an ack may wait for a reply to ride on before it goes out
+  // as a ZLB
+  private static final int DEFAULT_ACK_DELAY = 100;
+
+  // A HELLO goes out once nothing has been received for this long, and
+  // the tunnel is dropped when this many in a row get nothing back
+  private static final int DEFAULT_HELLO_INTERVAL = 60000;
+  private static final int DEFAULT_MAX_UNANSWERED_HELLOS = 3;
+
+  // Control messages are encoded once; sending copies the template and
+  // patches the header and ids
+  private static final L2tpControlTemplate sccrqTemplate;
+  private static final L2tpControlTemplate scccnTemplate;
+  private static final L2tpControlTemplate stopccnTemplate;
+  private static final L2tpControlTemplate stopccnErrorTemplate;
+  private static final L2tpControlTemplate helloTemplate;
+  private static final L2tpControlTemplate zlbTemplate;
+
+  static {
+    L2tpControlPacket sccrq = new L2tpControlPacket(L2tpControlPacket.L2TP_CTRL_TYPE_SCCRQ);
+    sccrq.addAvp(new L2tpAvp(true, L2tpAvp.L2TP_AVP_PROTOCOL_VERSION, L2tpControlPacket.L2TP_PROTOCOL_V1_0));
+    sccrq.addAvp(new L2tpAvp(true, L2tpAvp.L2TP_AVP_HOST_NAME, "hostname"));
+    sccrq.addAvp(new L2tpAvp(true, L2tpAvp.L2TP_AVP_FRAMING_CAPABILITIES, (int)0));
+    sccrq.addAvp(new L2tpAvp(true, L2tpAvp.L2TP_AVP_ASSIGNED_TUNNEL_ID, (short)0));
+    sccrq.addAvp(new L2tpAvp(true, L2tpAvp.L2TP_AVP_RECEIVE_WINDOW_SIZE, LOCAL_RECEIVE_WINDOW));
+    sccrqTemplate = new L2tpControlTemplate(sccrq);
+
+    scccnTemplate = new L2tpControlTemplate(
+        new L2tpControlPacket(L2tpControlPacket.L2TP_CTRL_TYPE_SCCCN));
+
+    L2tpControlPacket stopccn = new L2tpControlPacket(L2tpControlPacket.L2TP_CTRL_TYPE_StopCCN);
+    stopccn.addAvp(new L2tpAvp(true, L2tpAvp.L2TP_AVP_RESULT_CODE, (short)1));
+    stopccnTemplate = new L2tpControlTemplate(stopccn);
+
+    // Result Code 2 (General error), the error code is patched in
+    L2tpControlPacket stopccnError = new L2tpControlPacket(L2tpControlPacket.L2TP_CTRL_TYPE_StopCCN);
+    stopccnError.addAvp(new L2tpAvp(true, L2tpAvp.L2TP_AVP_ASSIGNED_TUNNEL_ID, (short)0));
+    stopccnError.addAvp(new L2tpAvp(true, L2tpAvp.L2TP_AVP_RESULT_CODE, (int)(2 << 16)));
+    stopccnErrorTemplate = new L2tpControlTemplate(stopccnError);
+
+    helloTemplate = new L2tpControlTemplate(
+        new L2tpControlPacket(L2tpControlPacket.L2TP_CTRL_TYPE_HELLO));
+
+    zlbTemplate = new L2tpControlTemplate(new L2tpControlPacket());
+  }
+
+  private final L2tpClient client;
+  private final short localId;
+  private final InetAddress addr;
+  private final int port;
+  private final DatagramChannel channel;
+  private final TimerWheel timerWheel;
+  private final BufferPool bufferPool;
+  private byte[] secret;
+  private TimerWheel.Timeout retransmitTimeout;
+  private TimerWheel.Timeout ackTimeout;
+  private TimerWheel.Timeout keepaliveTimeout;
+  private int helloInterval = DEFAULT_HELLO_INTERVAL;
+  private int maxUnansweredHellos = DEFAULT_MAX_UNANSWERED_HELLOS;
+  private int unansweredHellos;
+  // Only what comes in shows the peer is alive, sending proves nothing
+  private long lastReceiveTime;
+  private int ackDelay = DEFAULT_ACK_DELAY;
+  private volatile int tunnelState;
+  // Waiting for the attempt under way to succeed or fail
+  private ArrayList<L2tpCompletion> startWaiters = new ArrayList<L2tpCompletion>();
+  private short peerTunnelId;
+  private short expectedSequenceNo;
+  private L2tpReorderBuffer<L2tpControlPacket> controlReorder =
+      new L2tpReorderBuffer<L2tpControlPacket>(LOCAL_RECEIVE_WINDOW, LOCAL_RECEIVE_WINDOW);
+  private L2tpSendWindow sendWindow = new L2tpSendWindow(4);
+  private int srtt;
+  private int rttvar;
+  private int rto;
+  private int retransmits;
+  private int sessionSerial;
+  private L2tpAvpFields avpFields;
+  // Sessions by local id
+  private IdMap<L2tpSession> sessions = new IdMap<L2tpSession>();
+  private IdAllocator sessionIds = new IdAllocator();
+
+  L2tpTunnel(L2tpClient client, short localId, InetAddress addr, int port) throws IOException {
+    this.client = client;
+    this.localId = localId;
+    this.addr = addr;
+    this.port = port;
+    this.timerWheel = client.timerWheel();
+    this.bufferPool = client.bufferPool();
+    this.avpFields = new L2tpAvpFields(client.avpRegistry());
+
+    channel = DatagramChannel.open();
+    channel.configureBlocking(false);
+    channel.connect(new InetSocketAddress(addr, port));
+
+    init();
+  }
+
+  private void init() {
+    tunnelState = L2tpClient.TUNNEL_STATE_IDLE;
+    peerTunnelId = 0;
+    expectedSequenceNo = 0;
+    controlReorder.clear();
+    sessionSerial = 0;
+
+    timerWheel.cancel(retransmitTimeout);
+    retransmitTimeout = null;
+    timerWheel.cancel(ackTimeout);
+    ackTimeout = null;
+    timerWheel.cancel(keepaliveTimeout);
+    keepaliveTimeout = null;
+    unansweredHellos = 0;
+    sendWindow.clear();
+    sendWindow.windowSize(4);
+    srtt = 0;
+    rttvar = 0;
+    rto = RTO_INITIAL;
+    retransmits = 0;
+  }
+
+  public L2tpClient client() {
+    return client;
+  }
+
+  public short localId() {
+    return localId;
+  }
+
+  public short peerId() {
+    return peerTunnelId;
+  }
+
+  public InetAddress address() {
+    return addr;
+  }
+
+  public int port() {
+    return port;
+  }
+
+  DatagramChannel channel() {
+    return channel;
+  }
+
+  // 0 turns keepalives off.  Takes effect straight away on a tunnel that
+  // is already up.
+  public void keepalive(final int intervalMillis, final int maxUnanswered) {
+    client.post(new Runnable() {
+      public void run() {
+        helloInterval = intervalMillis;
+        maxUnansweredHellos = maxUnanswered;
+        if (tunnelState == L2tpClient.TUNNEL_STATE_ESTABLISHED) {
+          rescheduleKeepalive();
+        }
+      }
+    });
+  }
+
+  // 0 acknowledges every control message straight away
+  public void ackDelay(final int millis) {
+    client.post(new Runnable() {
+      public void run() {
+        ackDelay = millis;
+      }
+    });
+  }
+
+  // Control channel congestion state, may lag when read off the loop
+  public int congestionWindow() {
+    return sendWindow.congestionWindow();
+  }
+
+  public int slowStartThreshold() {
+    return sendWindow.slowStartThreshold();
+  }
+
+  public int retransmitTimeout() {
+    return rto;
+  }
+
+  public boolean isEstablished() {
+    return tunnelState == L2tpClient.TUNNEL_STATE_ESTABLISHED;
+  }
+
+  // Blocks until the tunnel is up or the attempt fails
+  public boolean start() {
+    return startAsync(0).await(0);
+  }
+
+  // Brings the tunnel up without blocking.  The completion fails if the
+  // tunnel isn't up within timeoutMillis, 0 meaning no limit.  Starts
+  // made while an attempt is under way wait on that attempt, and it is
+  // given up once every one of them has timed out.
+  public L2tpCompletion startAsync(final long timeoutMillis) {
+    final L2tpCompletion completion = new L2tpCompletion();
+    client.post(new Runnable() {
+      public void run() {
+        doStart(completion, timeoutMillis);
+      }
+    });
+    return completion;
+  }
+
+  void doStart(final L2tpCompletion completion, long timeoutMillis) {
+    if (tunnelState == L2tpClient.TUNNEL_STATE_ESTABLISHED) {
+      completion.complete(true);
+      return;
+    }
+
+    startWaiters.add(completion);
+    if (timeoutMillis > 0) {
+      completion.deadline = timerWheel.schedule(new Runnable() {
+        public void run() {
+          startTimedOut(completion);
+        }
+      }, timeoutMillis);
+    }
+
+    if (tunnelState == L2tpClient.TUNNEL_STATE_IDLE) {
+      tunnelState = L2tpClient.TUNNEL_STATE_WAIT_CTL_REPLY;
+      sendSCCRQ();
+    }
+  }
+
+  private void startTimedOut(L2tpCompletion completion) {
+    completion.deadline = null;
+    if (!startWaiters.remove(completion)) {
+      return;
+    }
+    completion.complete(false);
+
+    if (startWaiters.isEmpty() && tunnelState != L2tpClient.TUNNEL_STATE_ESTABLISHED &&
+        tunnelState != L2tpClient.TUNNEL_STATE_CLOSING) {
+      Log.d("L2tpTunnel", "start timed out, giving up");
+      tunnelDown();
+    }
+  }
+
+  private void finishStart(boolean success) {
+    if (startWaiters.isEmpty()) {
+      return;
+    }
+    // Listeners may start again, which adds to a fresh list
+    ArrayList<L2tpCompletion> waiters = startWaiters;
+    startWaiters = new ArrayList<L2tpCompletion>();
+    for (L2tpCompletion completion : waiters) {
+      timerWheel.cancel(completion.deadline);
+      completion.deadline = null;
+      completion.complete(success);
+    }
+  }
+
+  public void stop() {
+    client.post(stopTask);
+  }
+
+  private Runnable stopTask = new Runnable() {
+    public void run() {
+      for (L2tpSession session : sessions()) {
+        session.doStop();
+      }
+
+      if (tunnelState == L2tpClient.TUNNEL_STATE_IDLE)
+        return;
+
+      sendStopCCN();
+
+      init();
+      finishStart(false);
+    }
+  };
+
+  // Stops the tunnel and gives its id and socket back
+  public void close() {
+    client.post(new Runnable() {
+      public void run() {
+        stopTask.run();
+        for (L2tpSession session : sessions()) {
+          doCloseSession(session);
+        }
+        client.closeTunnel(L2tpTunnel.this);
+        try {
+          channel.close();
+        } catch (IOException e) {
+          Log.d("L2tpTunnel", "close failed");
+        }
+      }
+    });
+  }
+
+  // A new idle session with its own local id, or null if the tunnel has
+  // run out of ids
+  public L2tpSession openSession() {
+    int id = sessionIds.allocate();
+    if (id < 0) {
+      return null;
+    }
+    final L2tpSession session = new L2tpSession(this, (short)id);
+    client.post(new Runnable() {
+      public void run() {
+        sessions.put(session.localId(), session);
+      }
+    });
+    return session;
+  }
+
+  public void closeSession(final L2tpSession session) {
+    client.post(new Runnable() {
+      public void run() {
+        doCloseSession(session);
+      }
+    });
+  }
+
+  private void doCloseSession(L2tpSession session) {
+    session.doStop();
+    if (sessions.get(session.localId()) != session) {
+      return;
+    }
+    sessions.remove(session.localId());
+    sessionIds.free(session.localId());
+  }
+
+  // Loop thread only
+  L2tpSession session(short localId) {
+    return sessions.get(localId);
+  }
+
+  private L2tpSession[] sessions() {
+    Object[] values = sessions.values();
+    L2tpSession[] result = new L2tpSession[values.length];
+    System.arraycopy(values, 0, result, 0, values.length);
+    return result;
+  }
+
+  public void sendPacket(final L2tpPacket packet) {
+    client.post(new Runnable() {
+      public void run() {
+        queuePacket(packet);
+      }
+    });
+  }
+
+  void queuePacket(L2tpPacket packet) {
+    packet.tunnelId(peerTunnelId);
+
+    // Only control messages are delivered reliably, ZLBs aside
+    if (!packet.isControl()) {
+      doSendPacket(packet);
+      return;
+    }
+    L2tpControlPacket controlPacket = (L2tpControlPacket)packet;
+
+    // A ZLB carries the next Ns but doesn't use it up
+    if (controlPacket.isZLB()) {
+      packet.sequenceNo(sendWindow.nextSequenceNo());
+      doSendPacket(packet);
+      return;
+    }
+
+    // Queue the packet and send it if it's in the window
+    if (!sendWindow.add(controlPacket)) {
+      Log.d("L2tpTunnel", "send queue full, dropping packet");
+      return;
+    }
+    if (transmitQueued() == 0) {
+      Log.d("L2tpTunnel", "window full, queued Ns=" + controlPacket.sequenceNo());
+    }
+  }
+
+  // Sends every queued message the window has room for
+  private int transmitQueued() {
+    int count = 0;
+    L2tpControlPacket packet;
+    while ((packet = sendWindow.nextToSend()) != null) {
+      transmit(packet);
+      count++;
+    }
+    return count;
+  }
+
+  // Sends a queued control message and makes sure the retransmit timer
+  // is running
+  private void transmit(L2tpControlPacket packet) {
+    doSendPacket(packet);
+    packet.markSent(SystemClock.elapsedRealtime());
+
+    if (!timerWheel.isPending(retransmitTimeout)) {
+      retransmitTimeout = timerWheel.schedule(retransmitTask, rto);
+    }
+  }
+
+  // Drops the messages acknowledged by nr from the window, sends those
+  // that moved into it and feeds the round trip time back into rto
+  private void processAck(short nr) {
+    L2tpControlPacket acked = sendWindow.ack(nr);
+    if (acked == null) {
+      return;
+    }
+
+    // Only messages sent once give an unambiguous sample (Karn)
+    if (acked.transmissions() == 1) {
+      updateRto((int)(SystemClock.elapsedRealtime() - acked.sentAt()));
+    }
+    retransmits = 0;
+
+    // Restart the timer for whatever is still outstanding, then fill the
+    // slots that just opened
+    timerWheel.cancel(retransmitTimeout);
+    retransmitTimeout = null;
+    if (sendWindow.outstanding() > 0) {
+      retransmitTimeout = timerWheel.schedule(retransmitTask, rto);
+    }
+    transmitQueued();
+
+    if (tunnelState == L2tpClient.TUNNEL_STATE_CLOSING && sendWindow.isEmpty()) {
+      finishClosing();
+    }
+  }
+
+  // Jacobson's estimator: SRTT and RTTVAR with gains of 1/8 and 1/4
+  private void updateRto(int rtt) {
+    if (srtt == 0) {
+      srtt = rtt;
+      rttvar = rtt / 2;
+    } else {
+      rttvar += (Math.abs(srtt - rtt) - rttvar) / 4;
+      srtt += (rtt - srtt) / 8;
+    }
+    rto = Math.max(RTO_MIN, Math.min(RTO_MAX, srtt + 4 * rttvar));
+  }
+
+  private Runnable retransmitTask = new Runnable() {
+    public void run() {
+      retransmit();
+    }
+  };
+
+  // Runs when the oldest outstanding message has gone unacknowledged for
+  // rto.  The window collapses to one message and the rest of what was in
+  // flight is sent again as it reopens.
+  void retransmit() {
+    retransmitTimeout = null;
+    if (sendWindow.outstanding() == 0) {
+      return;
+    }
+
+    if (retransmits < MAX_RETRANSMITS) {
+      retransmits++;
+      rto = Math.min(rto * 2, RTO_MAX);
+      sendWindow.timeout();
+      Log.d("L2tpTunnel", "retransmit #" + retransmits + ", rto=" + rto +
+            ", ssthresh=" + sendWindow.slowStartThreshold());
+
+      transmitQueued();
+      return;
+    }
+
+    if (tunnelState == L2tpClient.TUNNEL_STATE_CLOSING) {
+      Log.d("L2tpTunnel", "StopCCN not acknowledged, giving up");
+      finishClosing();
+      return;
+    }
+
+    Log.d("L2tpTunnel", "peer not responding, tearing down tunnel");
+    tunnelDown();
+  }
+
+  // Called as each control message is delivered.  The ack is held for
+  // ackDelay in the hope a reply goes out first and carries it.
+  private void scheduleAck() {
+    if (ackDelay == 0) {
+      sendZLB();
+    } else if (!timerWheel.isPending(ackTimeout)) {
+      ackTimeout = timerWheel.schedule(ackTask, ackDelay);
+    }
+  }
+
+  private Runnable ackTask = new Runnable() {
+    public void run() {
+      if (ackTimeout != null) {
+        ackTimeout = null;
+        sendZLB();
+      }
+    }
+  };
+
+  private void startKeepalive() {
+    timerWheel.cancel(keepaliveTimeout);
+    keepaliveTimeout = null;
+    unansweredHellos = 0;
+    if (helloInterval > 0) {
+      lastReceiveTime = SystemClock.elapsedRealtime();
+      keepaliveTimeout = timerWheel.schedule(keepaliveTask, helloInterval);
+    }
+  }
+
+  // Sets the timer for the new interval, counted from the last receive,
+  // without forgetting HELLOs already unanswered
+  private void rescheduleKeepalive() {
+    timerWheel.cancel(keepaliveTimeout);
+    keepaliveTimeout = null;
+    if (helloInterval > 0) {
+      long idle = SystemClock.elapsedRealtime() - lastReceiveTime;
+      keepaliveTimeout = timerWheel.schedule(keepaliveTask, Math.max(0, helloInterval - idle));
+    }
+  }
+
+  private Runnable keepaliveTask = new Runnable() {
+    public void run() {
+      keepalive();
+    }
+  };
+
+  // Runs helloInterval after the last packet received while the tunnel is
+  // up, and helloInterval after each HELLO while nothing comes back
+  void keepalive() {
+    keepaliveTimeout = null;
+    if (tunnelState != L2tpClient.TUNNEL_STATE_ESTABLISHED || helloInterval <= 0) {
+      return;
+    }
+
+    long idle = SystemClock.elapsedRealtime() - lastReceiveTime;
+    if (idle < helloInterval) {
+      // Heard from the peer since this was scheduled
+      unansweredHellos = 0;
+      keepaliveTimeout = timerWheel.schedule(keepaliveTask, helloInterval - idle);
+      return;
+    }
+
+    if (unansweredHellos == maxUnansweredHellos) {
+      Log.d("L2tpTunnel", unansweredHellos + " HELLOs unanswered, tearing down tunnel");
+      tunnelDown();
+      return;
+    }
+    unansweredHellos++;
+    Log.d("L2tpTunnel", "nothing received, sending HELLO");
+    sendHELLO();
+
+    keepaliveTimeout = timerWheel.schedule(keepaliveTask, helloInterval);
+  }
+
+  // Writes a datagram whose header is already in place.  Also called by
+  // sessions sending data on their caller's thread; the channel is safe to
+  // write from several threads.  A full socket buffer drops the datagram,
+  // as the network would.
+  void write(ByteBuffer buf) {
+    try {
+      if (channel.write(buf) == 0) {
+        Log.d("L2tpTunnel", "socket buffer full, packet dropped");
+      }
+    } catch (IOException e) {
+      Log.d("L2tpTunnel", "packet send failed");
+    }
+  }
+
+  void doSendPacket(L2tpPacket packet) {
+    Log.d("L2tpTunnel", "send packet");
+
+    packet.expectedSequenceNo(expectedSequenceNo);
+    if (packet.isControl()) {
+      // Nr is acknowledged by this packet, no need for a ZLB
+      timerWheel.cancel(ackTimeout);
+      ackTimeout = null;
+    }
+
+    int length = packet.encodedLength();
+    boolean pooled = length <= bufferPool.bufferSize();
+    ByteBuffer buf = pooled ? bufferPool.acquire() : ByteBuffer.allocate(length);
+    packet.serialize(buf);
+    buf.flip();
+
+    try {
+      write(buf);
+    } finally {
+      if (pooled) {
+        bufferPool.release(buf);
+      }
+    }
+  }
+
+  void sendSCCRQ() {
+    L2tpControlPacket sccrq = sccrqTemplate.newPacket();
+    sccrq.patchShort(L2tpAvp.L2TP_AVP_ASSIGNED_TUNNEL_ID, localId);
+
+    queuePacket(sccrq);
+  }
+
+  void sendSCCCN() {
+    queuePacket(scccnTemplate.newPacket());
+  }
+
+  void sendStopCCN() {
+    queuePacket(stopccnTemplate.newPacket());
+  }
+
+  void sendStopCCN(int errorCode) {
+    L2tpControlPacket stopccn = stopccnErrorTemplate.newPacket();
+    stopccn.patchShort(L2tpAvp.L2TP_AVP_ASSIGNED_TUNNEL_ID, localId);
+    stopccn.patchInt(L2tpAvp.L2TP_AVP_RESULT_CODE, (2 << 16) | errorCode);
+
+    queuePacket(stopccn);
+  }
+
+  void sendHELLO() {
+    queuePacket(helloTemplate.newPacket());
+  }
+
+  void sendZLB() {
+    queuePacket(zlbTemplate.newPacket());
+  }
+
+  int nextCallSerial() {
+    return sessionSerial++;
+  }
+
+  // A datagram the client matched to this tunnel by the tunnel id in its
+  // header.  Takes ownership of buf.
+  void receive(L2tpPacketView view, ByteBuffer buf) {
+    lastReceiveTime = SystemClock.elapsedRealtime();
+
+    if (view.isControl()) {
+      L2tpPacket l2tpPacket = L2tpPacket.parse(view, secret);
+      if (l2tpPacket != null) {
+        handleControlPacket((L2tpControlPacket)l2tpPacket);
+      }
+      bufferPool.release(buf);
+      return;
+    }
+
+    L2tpSession session = sessions.get(view.sessionId());
+    if (session == null) {
+      Log.d("L2tpTunnel", "no session " + (view.sessionId() & 0xffff) + ", dropping data packet");
+      bufferPool.release(buf);
+      return;
+    }
+    session.receiveData(view);
+  }
+
+  void handleControlPacket(L2tpControlPacket packet) {
+    Log.d("L2tpTunnel", "control packet: " +
+          "Ns=" + packet.sequenceNo() + ", " +
+          "Nr=" + packet.expectedSequenceNo());
+
+    processAck(packet.expectedSequenceNo());
+
+    if (!packet.isValid()) {
+      Log.d("L2tpTunnel", "malformed AVPs");
+      return;
+    }
+
+    if (packet.isZLB()) {
+      Log.d("L2tpTunnel", "got ZLB");
+      return;
+    }
+
+    if (packet.sequenceNo() != expectedSequenceNo) {
+      Log.d("L2tpTunnel", "bad sequence # " + packet.sequenceNo() + " != " + expectedSequenceNo);
+      // Hold on to messages that got ahead of a lost or late one, the
+      // receive buffer goes back to the pool so they need their own copy
+      packet.detach();
+      if (controlReorder.put(packet.sequenceNo(), expectedSequenceNo, packet)) {
+        Log.d("L2tpTunnel", "held for reordering, " + controlReorder.size() + " waiting");
+      }
+      sendZLB();
+      return;
+    }
+
+    deliverControlPacket(packet);
+    while ((packet = controlReorder.poll(expectedSequenceNo)) != null) {
+      Log.d("L2tpTunnel", "delivering reordered Ns=" + packet.sequenceNo());
+      deliverControlPacket(packet);
+    }
+  }
+
+  // Handles the next control message in sequence.  Session messages go to
+  // the session named by the header's session id.
+  private void deliverControlPacket(L2tpControlPacket packet) {
+    expectedSequenceNo++;
+    scheduleAck();
+
+    try {
+      int error = client.avpRegistry().decode(packet, avpFields);
+      if (error != L2tpAvpRegistry.ERROR_NONE) {
+        rejectMessage(packet, error);
+        return;
+      }
+
+      L2tpAvpFields fields = avpFields;
+      switch (packet.messageType()) {
+        case L2tpControlPacket.L2TP_CTRL_TYPE_SCCRP:
+          handleSCCRP(fields);
+          break;
+        case L2tpControlPacket.L2TP_CTRL_TYPE_StopCCN:
+          handleStopCCN(packet);
+          break;
+        case L2tpControlPacket.L2TP_CTRL_TYPE_HELLO:
+          handleHELLO(packet);
+          break;
+        case L2tpControlPacket.L2TP_CTRL_TYPE_ICRP:
+        case L2tpControlPacket.L2TP_CTRL_TYPE_CDN:
+        case L2tpControlPacket.L2TP_CTRL_TYPE_SLI:
+          L2tpSession session = session(packet.sessionId());
+          if (session == null) {
+            Log.d("L2tpTunnel", "no session " + (packet.sessionId() & 0xffff));
+            break;
+          }
+          session.handleControlPacket(packet, fields);
+          break;
+        default:
+          Log.d("L2tpTunnel", "unknown message type");
+          break;
+      }
+    } catch (AvpFormatInvalidException e) {
+      // A required value was missing or out of range, so the start this
+      // message answers fails now rather than at its deadline
+      rejectMessage(packet, L2tpAvpRegistry.ERROR_BAD_VALUE);
+    } catch (Exception e) {
+      Log.d("L2tpTunnel", "caught exception in handler: " + e.getMessage());
+      e.printStackTrace();
+    }
+  }
+
+  // A message the registry or its handler refused tears down whatever it
+  // belongs to: the session for session messages, otherwise the whole
+  // tunnel
+  void rejectMessage(L2tpControlPacket packet, int errorCode) {
+    Log.d("L2tpTunnel", "rejecting message, error=" + errorCode);
+
+    if (packet.sessionId() != 0) {
+      L2tpSession session = session(packet.sessionId());
+      if (session != null) {
+        session.reject(errorCode);
+      }
+      return;
+    }
+
+    sendStopCCN(errorCode);
+    startClosing();
+  }
+
+  // Drops the tunnel without waiting for the peer, failing any start
+  // under way here or in a session
+  void tunnelDown() {
+    for (L2tpSession session : sessions()) {
+      session.down();
+    }
+
+    boolean wasUp = tunnelState != L2tpClient.TUNNEL_STATE_IDLE &&
+        tunnelState != L2tpClient.TUNNEL_STATE_CLOSING;
+    init();
+
+    if (wasUp) {
+      client.sendMessage(L2tpClient.TUNNEL_DOWN, this);
+    }
+    finishStart(false);
+  }
+
+  // Like tunnelDown(), except the control channel stays up until the
+  // StopCCN just queued is acknowledged or its retransmissions run out,
+  // so a lost datagram doesn't leave the peer holding a dead tunnel
+  private void startClosing() {
+    for (L2tpSession session : sessions()) {
+      session.down();
+    }
+
+    boolean wasUp = tunnelState != L2tpClient.TUNNEL_STATE_IDLE &&
+        tunnelState != L2tpClient.TUNNEL_STATE_CLOSING;
+    tunnelState = L2tpClient.TUNNEL_STATE_CLOSING;
+    timerWheel.cancel(keepaliveTimeout);
+    keepaliveTimeout = null;
+
+    if (wasUp) {
+      client.sendMessage(L2tpClient.TUNNEL_DOWN, this);
+    }
+    finishStart(false);
+  }
+
+  // Starts made while closing wait for it to finish, then get a fresh
+  // attempt
+  private void finishClosing() {
+    init();
+    if (!startWaiters.isEmpty()) {
+      tunnelState = L2tpClient.TUNNEL_STATE_WAIT_CTL_REPLY;
+      sendSCCRQ();
+    }
+  }
+
+  void handleSCCRP(L2tpAvpFields fields) throws AvpFormatInvalidException {
+    Log.d("L2tpTunnel", "handleSCCRP");
+
+    if (tunnelState != L2tpClient.TUNNEL_STATE_WAIT_CTL_REPLY) {
+      Log.d("L2tpTunnel", "not in wait-ctl-reply");
+      return;
+    }
+
+    if (fields.u16(L2tpAvp.L2TP_AVP_PROTOCOL_VERSION) != L2tpControlPacket.L2TP_PROTOCOL_V1_0) {
+      Log.d("L2tpTunnel", "bad Protocol-Version");
+      throw new AvpFormatInvalidException();
+    }
+    if ((peerTunnelId = (short)fields.u16(L2tpAvp.L2TP_AVP_ASSIGNED_TUNNEL_ID)) == 0) {
+      Log.d("L2tpTunnel", "bad Tunnel-Id");
+      throw new AvpFormatInvalidException();
+    }
+    if (fields.has(L2tpAvp.L2TP_AVP_RECEIVE_WINDOW_SIZE)) {
+      int windowSize = fields.u16(L2tpAvp.L2TP_AVP_RECEIVE_WINDOW_SIZE);
+      if (windowSize < 1) {
+        Log.d("L2tpTunnel", "bad Receive-Window-Size");
+      } else {
+        sendWindow.windowSize(windowSize);
+      }
+    }
+
+    tunnelState = L2tpClient.TUNNEL_STATE_ESTABLISHED;
+
+    sendSCCCN();
+    startKeepalive();
+    client.sendMessage(L2tpClient.TUNNEL_UP, this);
+    finishStart(true);
+  }
+
+  void handleHELLO(L2tpControlPacket packet) {
+    Log.d("L2tpTunnel", "handleHELLO");
+  }
+
+  void handleStopCCN(L2tpControlPacket packet) {
+    Log.d("L2tpTunnel", "handleStopCCN");
+
+    // Ack now, the tunnel state goes away with the pending ack
+    sendZLB();
+    if (tunnelState == L2tpClient.TUNNEL_STATE_CLOSING) {
+      finishClosing();
+      return;
+    }
+    tunnelDown();
+  }
+}
@@ -0,0 +1,145 @@
+package com.theusualco.L2tpTether;
+
+import java.nio.ByteBuffer;
+
+// MD5 (RFC 1321) whose whole state can be copied from another instance,
+// which MessageDigest only offers through clone().  HiddenAvpEngine keeps
+// one that has absorbed the shared secret and restores it for every
+// block, so hiding and unhiding allocate nothing.
+//
+// Not thread safe.
+public class Md5 {
+  static final int DIGEST_LENGTH = 16;
+  private static final int BLOCK_LENGTH = 64;
+
+  private static final int[] S = {
+    7, 12, 17, 22, 5, 9, 14, 20, 4, 11, 16, 23, 6, 10, 15, 21
+  };
+
+  private static final int[] T = new int[64];
+
+  static {
+    for (int i = 0; i < 64; i++) {
+      T[i] = (int)(long)Math.floor(Math.abs(Math.sin(i + 1)) * 4294967296.0);
+    }
+  }
+
+  private int a, b, c, d;
+  private long count;  // Bytes absorbed
+  private final byte[] block = new byte[BLOCK_LENGTH];
+  private final int[] x = new int[16];
+
+  public Md5() {
+    reset();
+  }
+
+  public void reset() {
+    a = 0x67452301;
+    b = 0xefcdab89;
+    c = 0x98badcfe;
+    d = 0x10325476;
+    count = 0;
+  }
+
+  // Makes this digest carry on from wherever other has got to
+  public void copyFrom(Md5 other) {
+    a = other.a;
+    b = other.b;
+    c = other.c;
+    d = other.d;
+    count = other.count;
+    System.arraycopy(other.block, 0, block, 0, (int)(count & (BLOCK_LENGTH - 1)));
+  }
+
+  public void update(byte[] src) {
+    update(src, 0, src.length);
+  }
+
+  public void update(byte[] src, int offset, int length) {
+    for (int i = 0; i < length; i++) {
+      update(src[offset + i]);
+    }
+  }
+
+  // Absorbs buf[start..end) without moving its position
+  public void update(ByteBuffer buf, int start, int end) {
+    for (int i = start; i < end; i++) {
+      update(buf.get(i));
+    }
+  }
+
+  private void update(byte value) {
+    int fill = (int)(count++ & (BLOCK_LENGTH - 1));
+    block[fill] = value;
+    if (fill == BLOCK_LENGTH - 1) {
+      transform();
+    }
+  }
+
+  // Writes the digest to dest[offset..offset+16) and resets
+  public void digest(byte[] dest, int offset) {
+    long bits = count << 3;
+    update((byte)0x80);
+    while ((count & (BLOCK_LENGTH - 1)) != BLOCK_LENGTH - 8) {
+      update((byte)0);
+    }
+    for (int i = 0; i < 8; i++) {
+      update((byte)(bits >>> (8 * i)));
+    }
+
+    putInt(dest, offset, a);
+    putInt(dest, offset + 4, b);
+    putInt(dest, offset + 8, c);
+    putInt(dest, offset + 12, d);
+    reset();
+  }
+
+  private static void putInt(byte[] dest, int offset, int value) {
+    dest[offset] = (byte)value;
+    dest[offset + 1] = (byte)(value >>> 8);
+    dest[offset + 2] = (byte)(value >>> 16);
+    dest[offset + 3] = (byte)(value >>> 24);
+  }
+
+  private void transform() {
+    for (int i = 0; i < 16; i++) {
+      x[i] = (block[4 * i] & 0xff) |
+          (block[4 * i + 1] & 0xff) << 8 |
+          (block[4 * i + 2] & 0xff) << 16 |
+          (block[4 * i + 3] & 0xff) << 24;
+    }
+
+    int aa = a, bb = b, cc = c, dd = d;
+    for (int i = 0; i < 64; i++) {
+      int f, g;
+      switch (i >> 4) {
+        case 0:
+          f = (bb & cc) | (~bb & dd);
+          g = i;
+          break;
+        case 1:
+          f = (bb & dd) | (cc & ~dd);
+          g = (5 * i + 1) & 15;
+          break;
+        case 2:
+          f = bb ^ cc ^ dd;
+          g = (3 * i + 5) & 15;
+          break;
+        default:
+          f = cc ^ (bb | ~dd);
+          g = (7 * i) & 15;
+          break;
+      }
+      int t = dd;
+      dd = cc;
+      cc = bb;
+      bb += Integer.rotateLeft(aa + f + T[i] + x[g], S[(i >> 4) * 4 + (i & 3)]);
+      aa = t;
+    }
+
+    a += aa;
+    b += bb;
+    c += cc;
+    d += dd;
+  }
+}
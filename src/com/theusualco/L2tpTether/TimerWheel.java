@@ -0,0 +1,156 @@
+package com.theusualco.L2tpTether;
+
+import android.os.SystemClock;
+
+// Hashed timing wheel.  A timeout goes into the bucket for the tick it
+// expires on, and each tick only walks that one bucket, so scheduling and
+// cancelling cost the same however many timers are pending.  Timeouts
+// further away than one turn of the wheel wait out the extra rounds in
+// their bucket.
+//
+// The owning thread sleeps for nextTickDelay() between calls to
+// advance(), typically as the timeout of a Selector.select().  Expired
+// tasks run on that thread outside the wheel's lock, so they may schedule
+// or cancel timeouts themselves.
+public class TimerWheel {
+  public static class Timeout {
+    private final Runnable task;
+    private long deadline;  // In ticks
+    private int bucket = -1;
+    private Timeout prev;
+    private Timeout next;
+
+    private Timeout(Runnable task) {
+      this.task = task;
+    }
+  }
+
+  private final long tickMillis;
+  private final Timeout[] buckets;
+  private final int mask;
+  private final long startMillis;
+  private long tick;  // Last tick processed
+  private int pending;
+
+  // buckets must be a power of two
+  public TimerWheel(long tickMillis, int buckets) {
+    if (Integer.bitCount(buckets) != 1) {
+      throw new IllegalArgumentException("buckets must be a power of two");
+    }
+    this.tickMillis = tickMillis;
+    this.buckets = new Timeout[buckets];
+    this.mask = buckets - 1;
+    this.startMillis = SystemClock.elapsedRealtime();
+  }
+
+  public long tickMillis() {
+    return tickMillis;
+  }
+
+  public synchronized int pending() {
+    return pending;
+  }
+
+  // Runs task once delayMillis have passed, rounded up to whole ticks
+  public synchronized Timeout schedule(Runnable task, long delayMillis) {
+    if (pending == 0) {
+      // Nothing has been advancing the wheel while it was idle
+      tick = Math.max(tick, currentTick());
+    }
+
+    Timeout timeout = new Timeout(task);
+    long ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+    timeout.deadline = tick + ticks;
+    link(timeout);
+    return timeout;
+  }
+
+  // Returns false if the timeout had already run or been cancelled
+  public synchronized boolean cancel(Timeout timeout) {
+    if (timeout == null || timeout.bucket < 0) {
+      return false;
+    }
+    unlink(timeout);
+    return true;
+  }
+
+  public synchronized boolean isPending(Timeout timeout) {
+    return timeout != null && timeout.bucket >= 0;
+  }
+
+  // Milliseconds until the next tick is due, 0 if it already is, or -1
+  // when nothing is scheduled
+  public synchronized long nextTickDelay() {
+    if (pending == 0) {
+      return -1;
+    }
+    long delay = startMillis + (tick + 1) * tickMillis - SystemClock.elapsedRealtime();
+    return Math.max(delay, 0);
+  }
+
+  // Processes every tick that has passed and runs what expired.  Returns
+  // the number of tasks run.
+  public int advance() {
+    Timeout expired = null;
+    synchronized (this) {
+      long target = currentTick();
+      while (tick < target) {
+        tick++;
+        Timeout timeout = buckets[(int)(tick & mask)];
+        while (timeout != null) {
+          Timeout next = timeout.next;
+          if (timeout.deadline <= tick) {
+            unlink(timeout);
+            timeout.next = expired;
+            expired = timeout;
+          }
+          timeout = next;
+        }
+        if (pending == 0) {
+          tick = target;
+        }
+      }
+    }
+
+    int count = 0;
+    while (expired != null) {
+      Timeout next = expired.next;
+      expired.next = null;
+      expired.task.run();
+      expired = next;
+      count++;
+    }
+    return count;
+  }
+
+  private long currentTick() {
+    return (SystemClock.elapsedRealtime() - startMillis) / tickMillis;
+  }
+
+  private void link(Timeout timeout) {
+    int bucket = (int)(timeout.deadline & mask);
+    timeout.bucket = bucket;
+    timeout.prev = null;
+    timeout.next = buckets[bucket];
+    if (timeout.next != null) {
+      timeout.next.prev = timeout;
+    }
+    buckets[bucket] = timeout;
+    pending++;
+  }
+
+  private void unlink(Timeout timeout) {
+    if (timeout.prev != null) {
+      timeout.prev.next = timeout.next;
+    } else {
+      buckets[timeout.bucket] = timeout.next;
+    }
+    if (timeout.next != null) {
+      timeout.next.prev = timeout.prev;
+    }
+    timeout.bucket = -1;
+    timeout.prev = null;
+    timeout.next = null;
+    pending--;
+  }
+}